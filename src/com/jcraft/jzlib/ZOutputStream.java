@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcraft.jzlib;
+
+import java.io.OutputStream;
+
+import org.androidpn.client.ZlibOutputStream;
+
+/**
+ * The name smack looks up when stream compression is negotiated. This is
+ * not JZlib: it only hands smack the {@link ZlibOutputStream} of the
+ * client. An application that bundles JZlib must leave this package out
+ * of the build, and smack then uses JZlib.
+ */
+public class ZOutputStream extends ZlibOutputStream {
+
+    public ZOutputStream(OutputStream out, int level) {
+        super(out, level);
+    }
+
+}
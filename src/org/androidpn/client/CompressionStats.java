@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Raw versus compressed byte counts of the compressed XMPP stream, for the
+ * current session and in total. Raw bytes are the XML before deflate and
+ * after inflate, compressed bytes are what goes over the (TLS) socket.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public final class CompressionStats {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(CompressionStats.class);
+
+    private static final AtomicLong sessionRawOut = new AtomicLong();
+
+    private static final AtomicLong sessionCompressedOut = new AtomicLong();
+
+    private static final AtomicLong sessionRawIn = new AtomicLong();
+
+    private static final AtomicLong sessionCompressedIn = new AtomicLong();
+
+    private static final AtomicLong totalRaw = new AtomicLong();
+
+    private static final AtomicLong totalCompressed = new AtomicLong();
+
+    private CompressionStats() {
+    }
+
+    public static void addOutbound(long raw, long compressed) {
+        sessionRawOut.addAndGet(raw);
+        sessionCompressedOut.addAndGet(compressed);
+        totalRaw.addAndGet(raw);
+        totalCompressed.addAndGet(compressed);
+    }
+
+    public static void addInbound(long raw, long compressed) {
+        sessionRawIn.addAndGet(raw);
+        sessionCompressedIn.addAndGet(compressed);
+        totalRaw.addAndGet(raw);
+        totalCompressed.addAndGet(compressed);
+    }
+
+    /**
+     * Logs the counts of the session that ended, and starts counting a new
+     * one.
+     */
+    public static void newSession() {
+        long raw = sessionRawOut.getAndSet(0) + sessionRawIn.getAndSet(0);
+        long compressed = sessionCompressedOut.getAndSet(0)
+                + sessionCompressedIn.getAndSet(0);
+        if (raw > 0) {
+            Log.d(LOGTAG, "Last session: raw=" + raw + " compressed="
+                    + compressed + " saved=" + (raw - compressed) + " bytes");
+        }
+    }
+
+    public static long getSessionRawOut() {
+        return sessionRawOut.get();
+    }
+
+    public static long getSessionCompressedOut() {
+        return sessionCompressedOut.get();
+    }
+
+    public static long getSessionRawIn() {
+        return sessionRawIn.get();
+    }
+
+    public static long getSessionCompressedIn() {
+        return sessionCompressedIn.get();
+    }
+
+    public static long getTotalRaw() {
+        return totalRaw.get();
+    }
+
+    public static long getTotalCompressed() {
+        return totalCompressed.get();
+    }
+
+    /**
+     * Returns the bytes saved by compression since the process started.
+     */
+    public static long getTotalSaved() {
+        return totalRaw.get() - totalCompressed.get();
+    }
+
+    /**
+     * Returns the compressed size as a fraction of the raw size, or 1 if
+     * nothing was compressed yet.
+     */
+    public static double getTotalRatio() {
+        long raw = totalRaw.get();
+        return raw == 0 ? 1d : (double) totalCompressed.get() / raw;
+    }
+
+}
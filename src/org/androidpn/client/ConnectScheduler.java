@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Coalesces the connect/disconnect requests coming from the connectivity
+ * receiver and the phone state listener. All requests made within the
+ * debounce window collapse into the latest desired state, which is applied
+ * once when the window closes.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class ConnectScheduler {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(ConnectScheduler.class);
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 1000L;
+
+    private final NotificationService notificationService;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long debounceMillis;
+
+    private final AtomicBoolean desiredConnected = new AtomicBoolean(false);
+
+    private final AtomicBoolean flushPending = new AtomicBoolean(false);
+
+    private final AtomicLong triggerCount = new AtomicLong();
+
+    private final AtomicLong absorbedCount = new AtomicLong();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public ConnectScheduler(NotificationService notificationService,
+            ScheduledExecutorService scheduler, long debounceMillis) {
+        this.notificationService = notificationService;
+        this.scheduler = scheduler;
+        this.debounceMillis = debounceMillis;
+    }
+
+    public void requestConnect() {
+        request(true);
+    }
+
+    public void requestDisconnect() {
+        request(false);
+    }
+
+    /**
+     * Returns the number of requests that were absorbed by a pending one.
+     */
+    public long getAbsorbedCount() {
+        return absorbedCount.get();
+    }
+
+    /**
+     * Returns the total number of requests received.
+     */
+    public long getTriggerCount() {
+        return triggerCount.get();
+    }
+
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    private void request(boolean connected) {
+        // The desired state must be published before checking for a pending
+        // flush, so that a flush already in progress cannot miss it.
+        desiredConnected.set(connected);
+        triggerCount.incrementAndGet();
+        if (flushPending.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(flushTask, debounceMillis,
+                        TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Log.w(LOGTAG, "Scheduler is shut down, request dropped");
+                flushPending.set(false);
+            }
+        } else {
+            absorbedCount.incrementAndGet();
+        }
+    }
+
+    private void flush() {
+        flushPending.set(false);
+        final boolean connected = desiredConnected.get();
+        Log.d(LOGTAG, "flush()... connected=" + connected + ", absorbed="
+                + absorbedCount.get() + "/" + triggerCount.get());
+        notificationService.getTaskSubmitter().submit(new Runnable() {
+            public void run() {
+                XmppManager xmppManager = notificationService.getXmppManager();
+                if (connected) {
+                    xmppManager.reconnectNow();
+                } else {
+                    xmppManager.disconnect();
+                }
+            }
+        });
+    }
+
+}
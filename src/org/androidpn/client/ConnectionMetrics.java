@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency histograms and success/failure counters for the phases of a
+ * connection attempt.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class ConnectionMetrics {
+
+    /**
+     * The measured phases.
+     */
+    public enum Phase {
+        /** DNS lookup and TCP connect. */
+        CONNECT,
+        /**
+         * STARTTLS negotiation and TLS handshake, from the connected
+         * socket to the secured stream.
+         */
+        TLS,
+        /** Registration round trip. */
+        REGISTER,
+        /** Login round trip. */
+        LOGIN,
+        /** Whole attempt, from connect() to ready. */
+        READY
+    }
+
+    /** Upper bounds of the histogram buckets, in milliseconds. */
+    private static final long[] BOUNDS = { 10, 25, 50, 100, 250, 500, 1000,
+            2500, 5000, 10000, 30000, 60000, Long.MAX_VALUE };
+
+    private final Map<Phase, Histogram> histograms = new EnumMap<Phase, Histogram>(
+            Phase.class);
+
+    public ConnectionMetrics() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new Histogram());
+        }
+    }
+
+    /**
+     * Records a successful phase.
+     */
+    public void success(Phase phase, long millis) {
+        Histogram histogram = histograms.get(phase);
+        synchronized (histogram) {
+            histogram.add(millis);
+        }
+    }
+
+    /**
+     * Records a failed phase.
+     */
+    public void failure(Phase phase) {
+        Histogram histogram = histograms.get(phase);
+        synchronized (histogram) {
+            histogram.failures++;
+        }
+    }
+
+    public PhaseSnapshot getSnapshot(Phase phase) {
+        Histogram histogram = histograms.get(phase);
+        synchronized (histogram) {
+            return new PhaseSnapshot(phase, histogram);
+        }
+    }
+
+    /**
+     * Returns a snapshot of all phases.
+     */
+    public Snapshot snapshot() {
+        Map<Phase, PhaseSnapshot> phases = new EnumMap<Phase, PhaseSnapshot>(
+                Phase.class);
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, getSnapshot(phase));
+        }
+        return new Snapshot(phases);
+    }
+
+    private static final class Histogram {
+
+        final long[] buckets = new long[BOUNDS.length];
+
+        long count;
+
+        long failures;
+
+        long sum;
+
+        long min = Long.MAX_VALUE;
+
+        long max;
+
+        void add(long millis) {
+            int i = 0;
+            while (millis > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i]++;
+            count++;
+            sum += millis;
+            min = Math.min(min, millis);
+            max = Math.max(max, millis);
+        }
+    }
+
+    /**
+     * The counters and latency distribution of one phase.
+     */
+    public static final class PhaseSnapshot {
+
+        private final Phase phase;
+
+        private final long[] buckets;
+
+        private final long successes;
+
+        private final long failures;
+
+        private final long sum;
+
+        private final long min;
+
+        private final long max;
+
+        PhaseSnapshot(Phase phase, Histogram histogram) {
+            this.phase = phase;
+            this.buckets = histogram.buckets.clone();
+            this.successes = histogram.count;
+            this.failures = histogram.failures;
+            this.sum = histogram.sum;
+            this.min = histogram.count == 0 ? 0 : histogram.min;
+            this.max = histogram.max;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return successes == 0 ? 0 : sum / successes;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the percentile,
+         * capped by the largest value seen.
+         * @param percentile between 0 and 100
+         */
+        public long getPercentile(double percentile) {
+            if (successes == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(successes * percentile / 100d);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[i], max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Returns the bucket counts, one per bound of
+         * {@link #getBucketBounds()}.
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        public static long[] getBucketBounds() {
+            return BOUNDS.clone();
+        }
+
+        @Override
+        public String toString() {
+            return phase + " ok=" + successes + " failed=" + failures
+                    + " mean=" + getMean() + " p50=" + getPercentile(50)
+                    + " p90=" + getPercentile(90) + " p99="
+                    + getPercentile(99) + " max=" + max;
+        }
+    }
+
+    /**
+     * A point in time copy of all the phase metrics.
+     */
+    public static final class Snapshot {
+
+        private final Map<Phase, PhaseSnapshot> phases;
+
+        private final long takenAt;
+
+        Snapshot(Map<Phase, PhaseSnapshot> phases) {
+            this.phases = phases;
+            this.takenAt = System.currentTimeMillis();
+        }
+
+        public PhaseSnapshot get(Phase phase) {
+            return phases.get(phase);
+        }
+
+        /**
+         * Returns the wall clock time the snapshot was taken at.
+         */
+        public long getTakenAt() {
+            return takenAt;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            for (PhaseSnapshot phase : phases.values()) {
+                if (buf.length() > 0) {
+                    buf.append('\n');
+                }
+                buf.append(phase);
+            }
+            return buf.toString();
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.concurrent.atomic.AtomicStampedReference;
+
+import android.util.Log;
+
+/**
+ * A lock-free state machine for the XMPP connection lifecycle.
+ *
+ * DISCONNECTED -> CONNECTING -> REGISTERING -> AUTHENTICATING -> READY
+ *
+ * Every connection attempt is identified by a token (the stamp of the state
+ * reference). A task may only move the machine forward while its token is
+ * still current, so a stale task left over from an earlier attempt can never
+ * advance a newer one.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public final class ConnectionStateMachine {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(ConnectionStateMachine.class);
+
+    public enum State {
+        DISCONNECTED, CONNECTING, REGISTERING, AUTHENTICATING, READY
+    }
+
+    private final AtomicStampedReference<State> state = new AtomicStampedReference<State>(
+            State.DISCONNECTED, 0);
+
+    public ConnectionStateMachine() {
+    }
+
+    public State getState() {
+        return state.getReference();
+    }
+
+    public boolean isCurrent(int token) {
+        return state.getStamp() == token;
+    }
+
+    /**
+     * Starts a new connection attempt.
+     * @return the token of the new attempt, or -1 if an attempt is
+     *         already in progress or the connection is ready
+     */
+    public int begin() {
+        int[] stampHolder = new int[1];
+        State current = state.get(stampHolder);
+        if (current != State.DISCONNECTED) {
+            return -1;
+        }
+        int token = stampHolder[0] + 1;
+        if (state.compareAndSet(State.DISCONNECTED, State.CONNECTING,
+                stampHolder[0], token)) {
+            Log.d(LOGTAG, "DISCONNECTED -> CONNECTING (token=" + token + ")");
+            return token;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the attempt identified by the token from one state to the next.
+     * @return false if the token is stale or the machine is not in the
+     *         expected state
+     */
+    public boolean advance(int token, State from, State to) {
+        if (state.compareAndSet(from, to, token, token)) {
+            Log.d(LOGTAG, from + " -> " + to + " (token=" + token + ")");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the attempt identified by the token as failed.
+     * @return false if the token is stale
+     */
+    public boolean fail(int token) {
+        while (true) {
+            int[] stampHolder = new int[1];
+            State current = state.get(stampHolder);
+            if (stampHolder[0] != token || current == State.DISCONNECTED) {
+                return false;
+            }
+            if (state.compareAndSet(current, State.DISCONNECTED, token,
+                    token)) {
+                Log.d(LOGTAG, current + " -> DISCONNECTED (token=" + token
+                        + ")");
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forces the machine back to DISCONNECTED, invalidating any attempt
+     * in progress.
+     * @return the state before the reset
+     */
+    public State reset() {
+        while (true) {
+            int[] stampHolder = new int[1];
+            State current = state.get(stampHolder);
+            if (state.compareAndSet(current, State.DISCONNECTED,
+                    stampHolder[0], stampHolder[0] + 1)) {
+                Log.d(LOGTAG, current + " -> DISCONNECTED (reset)");
+                return current;
+            }
+        }
+    }
+
+}
@@ -54,6 +54,7 @@ public class ConnectivityReceiver extends BroadcastReceiver {
             Log.d(LOGTAG, "Network State = " + networkInfo.getState());
             if (networkInfo.isConnected()) {
                 Log.i(LOGTAG, "Network connected");
+                notificationService.prewarm();
                 notificationService.connect();
             }
         } else {
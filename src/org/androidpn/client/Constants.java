@@ -38,6 +38,24 @@ public class Constants {
 
     public static final String XMPP_PORT = "XMPP_PORT";
 
+    public static final String XMPP_ENDPOINTS = "XMPP_ENDPOINTS";
+
+    public static final String XMPP_PREWARM = "XMPP_PREWARM";
+
+    public static final String XMPP_COMPRESSION = "XMPP_COMPRESSION";
+
+    public static final String TLS_SESSION_CACHE = "TLS_SESSION_CACHE";
+
+    public static final String CONNECT_DEBOUNCE_MILLIS = "CONNECT_DEBOUNCE_MILLIS";
+
+    public static final String NOTIFICATION_BROADCAST_ENABLED = "NOTIFICATION_BROADCAST_ENABLED";
+
+    public static final String NOTIFICATION_SLOTS = "NOTIFICATION_SLOTS";
+
+    public static final String CONFIG_HASH = "CONFIG_HASH";
+
+    public static final String JOURNAL_CHECKPOINT = "JOURNAL_CHECKPOINT";
+
     public static final String XMPP_USERNAME = "XMPP_USERNAME";
 
     public static final String XMPP_PASSWORD = "XMPP_PASSWORD";
@@ -70,10 +88,24 @@ public class Constants {
 
     public static final String NOTIFICATION_URI = "NOTIFICATION_URI";
 
+    public static final String NOTIFICATION_EXTRAS = "NOTIFICATION_EXTRAS";
+
+    public static final String NOTIFICATION_IDS = "NOTIFICATION_IDS";
+
+    public static final String NOTIFICATION_API_KEYS = "NOTIFICATION_API_KEYS";
+
+    public static final String NOTIFICATION_TITLES = "NOTIFICATION_TITLES";
+
+    public static final String NOTIFICATION_MESSAGES = "NOTIFICATION_MESSAGES";
+
+    public static final String NOTIFICATION_URIS = "NOTIFICATION_URIS";
+
     // INTENT ACTIONS
 
     public static final String ACTION_SHOW_NOTIFICATION = "org.androidpn.client.SHOW_NOTIFICATION";
 
+    public static final String ACTION_SHOW_NOTIFICATIONS = "org.androidpn.client.SHOW_NOTIFICATIONS";
+
     public static final String ACTION_NOTIFICATION_CLICKED = "org.androidpn.client.NOTIFICATION_CLICKED";
 
     public static final String ACTION_NOTIFICATION_CLEARED = "org.androidpn.client.NOTIFICATION_CLEARED";
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Takes the parsed notifications through the dedup, persist and dispatch
+ * stages, each on its own threads, with a bounded queue in front of each
+ * stage.
+ *
+ * The dedup and dispatch stages have {@link #PARTITIONS} partitions, and
+ * the notifications of an api key always go to the same one, so they are
+ * processed in order while other api keys proceed in parallel. The persist
+ * stage is a single writer, which appends whatever is queued to the
+ * journal in turn. A full queue blocks the stage, or the caller, in front
+ * of it, so no notification is dropped.
+ *
+ * The pipeline keeps, in the preferences, the sequence number up to which
+ * the journaled notifications have all been dispatched. The notifications
+ * journaled after it were lost with the process, and {@link #recover()}
+ * dispatches them from the journal when the service starts again.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class DeliveryPipeline {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(DeliveryPipeline.class);
+
+    public static final int PARTITIONS = 2;
+
+    public static final int QUEUE_CAPACITY = 128;
+
+    private final NotificationDeduplicator deduplicator;
+
+    private final NotificationJournal journal;
+
+    private final NotificationBus bus;
+
+    private final Stage dispatchStage;
+
+    private final Stage persistStage;
+
+    private final Stage dedupStage;
+
+    private final PreferenceStore sharedPrefs;
+
+    // 已记录但尚未分发的序号范围，首序号 -> 末序号
+    private final TreeMap<Long, Long> undispatched = new TreeMap<Long, Long>();
+
+    private long lastJournaled;
+
+    private long checkpoint;
+
+    public DeliveryPipeline(NotificationDeduplicator deduplicator,
+            NotificationJournal journal, NotificationBus bus,
+            PreferenceStore sharedPrefs) {
+        this.deduplicator = deduplicator;
+        this.journal = journal;
+        this.bus = bus;
+        this.sharedPrefs = sharedPrefs;
+        dispatchStage = new Stage("Dispatch", PARTITIONS, null) {
+            void process(Item item) {
+                DeliveryPipeline.this.bus.post(item.notifications);
+                if (item.firstSequence > 0) {
+                    dispatched(item);
+                }
+            }
+        };
+        persistStage = new Stage("Persist", 1, dispatchStage) {
+            void process(Item item) {
+                long first;
+                if (item.notifications.size() == 1) {
+                    first = DeliveryPipeline.this.journal
+                            .append(item.notifications.get(0));
+                } else {
+                    first = DeliveryPipeline.this.journal
+                            .appendAll(item.notifications);
+                }
+                if (first > 0) {
+                    journaled(item, first);
+                }
+            }
+        };
+        dedupStage = new Stage("Dedup", PARTITIONS, persistStage) {
+            void process(Item item) {
+                List<NotificationIQ> fresh = new ArrayList<NotificationIQ>(
+                        item.notifications.size());
+                for (NotificationIQ notification : item.notifications) {
+                    if (!DeliveryPipeline.this.deduplicator
+                            .isDuplicate(notification)) {
+                        fresh.add(notification);
+                    }
+                }
+                item.notifications = fresh;
+            }
+        };
+        dispatchStage.start();
+        persistStage.start();
+        dedupStage.start();
+    }
+
+    /**
+     * Queues the notification. Blocks while the first stage is full.
+     */
+    public void submit(NotificationIQ notification) {
+        List<NotificationIQ> notifications = new ArrayList<NotificationIQ>(1);
+        notifications.add(notification);
+        dedupStage.put(new Item(apiKey(notification), notifications));
+    }
+
+    /**
+     * Queues the notifications of a batch, split by api key. Blocks while
+     * the first stage is full.
+     */
+    public void submit(List<NotificationIQ> notifications) {
+        Map<String, List<NotificationIQ>> byApiKey = new LinkedHashMap<String, List<NotificationIQ>>();
+        for (NotificationIQ notification : notifications) {
+            String apiKey = apiKey(notification);
+            List<NotificationIQ> group = byApiKey.get(apiKey);
+            if (group == null) {
+                group = new ArrayList<NotificationIQ>();
+                byApiKey.put(apiKey, group);
+            }
+            group.add(notification);
+        }
+        for (Map.Entry<String, List<NotificationIQ>> entry : byApiKey
+                .entrySet()) {
+            dedupStage.put(new Item(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Lets the queued notifications through, then stops the threads. New
+     * notifications are rejected.
+     */
+    public void shutdown() {
+        dedupStage.stop();
+    }
+
+    /**
+     * Waits until the notifications queued before the shutdown have been
+     * dispatched.
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return dispatchStage.terminated.await(timeout, unit);
+    }
+
+    /**
+     * Dispatches the notifications journaled after the last checkpoint,
+     * i.e. received but not dispatched before the process died. Called
+     * when the service starts, before the connection is opened. On the
+     * first run the checkpoint is set to the end of the journal.
+     */
+    public void recover() {
+        long saved = sharedPrefs.getLong(Constants.JOURNAL_CHECKPOINT, -1L);
+        long last = journal.getLastSequence();
+        if (saved >= 0 && saved < last) {
+            final List<NotificationIQ> lost = new ArrayList<NotificationIQ>();
+            journal.replay(saved + 1, new NotificationJournal.Visitor() {
+                public boolean visit(NotificationJournal.Entry entry) {
+                    lost.add(entry.getNotification());
+                    return true;
+                }
+            });
+            Log.i(LOGTAG, "Recovered " + lost.size()
+                    + " undispatched notifications");
+            if (!lost.isEmpty()) {
+                bus.post(lost);
+            }
+        }
+        synchronized (this) {
+            lastJournaled = Math.max(lastJournaled, last);
+            checkpoint = undispatched.isEmpty() ? lastJournaled
+                    : undispatched.firstKey() - 1;
+            saveCheckpoint(checkpoint);
+        }
+    }
+
+    /**
+     * Returns true if no notification is queued or being processed in any
+     * stage.
+     */
+    public boolean isIdle() {
+        return dedupStage.isIdle() && persistStage.isIdle()
+                && dispatchStage.isIdle();
+    }
+
+    public StageSnapshot getDedupSnapshot() {
+        return dedupStage.snapshot();
+    }
+
+    public StageSnapshot getPersistSnapshot() {
+        return persistStage.snapshot();
+    }
+
+    public StageSnapshot getDispatchSnapshot() {
+        return dispatchStage.snapshot();
+    }
+
+    private synchronized void journaled(Item item, long first) {
+        item.firstSequence = first;
+        long last = first + item.notifications.size() - 1;
+        undispatched.put(first, last);
+        lastJournaled = Math.max(lastJournaled, last);
+    }
+
+    /**
+     * Moves the checkpoint past the dispatched notifications, up to the
+     * first range still in the pipeline.
+     */
+    private synchronized void dispatched(Item item) {
+        undispatched.remove(item.firstSequence);
+        long newCheckpoint = undispatched.isEmpty() ? lastJournaled
+                : undispatched.firstKey() - 1;
+        if (newCheckpoint > checkpoint) {
+            checkpoint = newCheckpoint;
+            // apply() only updates the store in memory, the write is deferred
+            saveCheckpoint(newCheckpoint);
+        }
+    }
+
+    private void saveCheckpoint(long sequence) {
+        PreferenceStore.Editor editor = sharedPrefs.edit();
+        editor.putLong(Constants.JOURNAL_CHECKPOINT, sequence);
+        editor.apply();
+    }
+
+    private static String apiKey(NotificationIQ notification) {
+        return notification.getApiKey() == null ? "" : notification
+                .getApiKey();
+    }
+
+    // 放在每个分区队列末尾，通知阶段线程退出
+    private static final Item STOP = new Item("", null);
+
+    private static final class Item {
+
+        final String apiKey;
+
+        List<NotificationIQ> notifications;
+
+        long queuedAt;
+
+        long firstSequence;
+
+        Item(String apiKey, List<NotificationIQ> notifications) {
+            this.apiKey = apiKey;
+            this.notifications = notifications;
+        }
+    }
+
+    private abstract static class Stage {
+
+        final String name;
+
+        final Stage next;
+
+        final List<BlockingQueue<Item>> queues;
+
+        final AtomicInteger running = new AtomicInteger();
+
+        // 正在放入队列的调用数，线程在它们完成之前不退出
+        final AtomicInteger putting = new AtomicInteger();
+
+        final CountDownLatch terminated = new CountDownLatch(1);
+
+        // 正在处理的项数
+        final AtomicInteger active = new AtomicInteger();
+
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        long processed;
+
+        long totalWait;
+
+        long maxWait;
+
+        long totalTime;
+
+        long maxTime;
+
+        int maxDepth;
+
+        Stage(String name, int partitions, Stage next) {
+            this.name = name;
+            this.next = next;
+            this.queues = new ArrayList<BlockingQueue<Item>>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                queues.add(new ArrayBlockingQueue<Item>(QUEUE_CAPACITY));
+            }
+        }
+
+        abstract void process(Item item);
+
+        void start() {
+            for (int i = 0; i < queues.size(); i++) {
+                final BlockingQueue<Item> queue = queues.get(i);
+                running.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        work(queue);
+                    }
+                }, "Notification " + name + " Thread " + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        void put(Item item) {
+            putting.incrementAndGet();
+            try {
+                if (stopped.get()) {
+                    Log.w(LOGTAG, name
+                            + " stage stopped, notification dropped");
+                    return;
+                }
+                int partition = (item.apiKey.hashCode() & 0x7fffffff)
+                        % queues.size();
+                BlockingQueue<Item> queue = queues.get(partition);
+                item.queuedAt = SystemClock.elapsedRealtime();
+                try {
+                    queue.put(item);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Log.w(LOGTAG, "Interrupted, notification dropped");
+                    return;
+                }
+                synchronized (this) {
+                    maxDepth = Math.max(maxDepth, queue.size());
+                }
+            } finally {
+                putting.decrementAndGet();
+            }
+        }
+
+        /**
+         * Rejects new items and queues a stop marker behind the accepted
+         * ones, so that the threads exit once they have processed them.
+         */
+        void stop() {
+            if (!stopped.compareAndSet(false, true)) {
+                return;
+            }
+            boolean interrupted = false;
+            // 一个放入在检查stopped之后仍可能进行中，标记要排在它后面
+            while (putting.get() > 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            for (BlockingQueue<Item> queue : queues) {
+                for (;;) {
+                    try {
+                        queue.put(STOP);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void work(BlockingQueue<Item> queue) {
+            try {
+                for (;;) {
+                    Item item;
+                    try {
+                        item = queue.take();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (item == STOP) {
+                        break;
+                    }
+                    active.incrementAndGet();
+                    try {
+                        handle(item);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }
+            } finally {
+                // 本阶段的最后一个线程退出后，再停止下一个阶段
+                if (running.decrementAndGet() == 0) {
+                    if (next != null) {
+                        next.stop();
+                    }
+                    terminated.countDown();
+                }
+            }
+        }
+
+        private void handle(Item item) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                process(item);
+            } catch (RuntimeException e) {
+                Log.e(LOGTAG, name + " stage failed", e);
+            }
+            long end = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                processed++;
+                totalWait += start - item.queuedAt;
+                maxWait = Math.max(maxWait, start - item.queuedAt);
+                totalTime += end - start;
+                maxTime = Math.max(maxTime, end - start);
+            }
+            if (next != null && !item.notifications.isEmpty()) {
+                next.put(item);
+            }
+        }
+
+        boolean isIdle() {
+            if (putting.get() > 0 || active.get() > 0) {
+                return false;
+            }
+            for (BlockingQueue<Item> queue : queues) {
+                if (!queue.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        StageSnapshot snapshot() {
+            int depth = 0;
+            for (BlockingQueue<Item> queue : queues) {
+                depth += queue.size();
+            }
+            synchronized (this) {
+                return new StageSnapshot(name, depth, maxDepth, processed,
+                        totalWait, maxWait, totalTime, maxTime);
+            }
+        }
+    }
+
+    /**
+     * The queue depth and latencies of one stage.
+     */
+    public static final class StageSnapshot {
+
+        private final String stage;
+
+        private final int queueDepth;
+
+        private final int maxQueueDepth;
+
+        private final long processed;
+
+        private final long totalWait;
+
+        private final long maxWait;
+
+        private final long totalTime;
+
+        private final long maxTime;
+
+        StageSnapshot(String stage, int queueDepth, int maxQueueDepth,
+                long processed, long totalWait, long maxWait, long totalTime,
+                long maxTime) {
+            this.stage = stage;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.processed = processed;
+            this.totalWait = totalWait;
+            this.maxWait = maxWait;
+            this.totalTime = totalTime;
+            this.maxTime = maxTime;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        /**
+         * Returns the items queued in front of the stage, in all its
+         * partitions.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Returns the largest depth seen in one partition.
+         */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getMeanWaitMillis() {
+            return processed == 0 ? 0 : totalWait / processed;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWait;
+        }
+
+        public long getMeanTimeMillis() {
+            return processed == 0 ? 0 : totalTime / processed;
+        }
+
+        public long getMaxTimeMillis() {
+            return maxTime;
+        }
+
+        @Override
+        public String toString() {
+            return stage + " depth=" + queueDepth + " maxDepth="
+                    + maxQueueDepth + " processed=" + processed
+                    + " meanWait=" + getMeanWaitMillis() + " maxWait="
+                    + maxWait + " meanTime=" + getMeanTimeMillis()
+                    + " maxTime=" + maxTime;
+        }
+    }
+
+}
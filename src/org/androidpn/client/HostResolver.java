@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A host name resolver with a positive and negative cache, so that
+ * reconnects do not pay for a DNS lookup on the critical path.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class HostResolver {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(HostResolver.class);
+
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000L;
+
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 30 * 1000L;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    private final long ttlMillis;
+
+    private final long negativeTtlMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public HostResolver() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    public HostResolver(long ttlMillis, long negativeTtlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    /**
+     * Resolves the host, using the cached result if it has not expired.
+     * @throws UnknownHostException if the host could not be resolved, now
+     *         or within the negative caching period
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        Entry entry = cache.get(host);
+        if (entry != null && entry.expiresAt > now) {
+            hits.incrementAndGet();
+            if (entry.addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return entry.addresses;
+        }
+        misses.incrementAndGet();
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            cache.put(host, new Entry(addresses, now + ttlMillis));
+            return addresses;
+        } catch (UnknownHostException e) {
+            Log.w(LOGTAG, "Could not resolve " + host);
+            cache.put(host, new Entry(null, now + negativeTtlMillis));
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the cached result for the host, for example after a connect
+     * failure to one of its addresses.
+     */
+    public void invalidate(String host) {
+        cache.remove(host);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Drops the cached lookup failures, for example when the network
+     * changes and a failure cached while offline no longer holds.
+     */
+    public void clearFailures() {
+        for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+            if (it.next().addresses == null) {
+                it.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static final class Entry {
+
+        final InetAddress[] addresses;
+
+        final long expiresAt;
+
+        Entry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
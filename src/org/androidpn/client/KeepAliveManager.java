@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.xmlpull.v1.XmlPullParser;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Application level keepalive for the persistent connection, using XEP-0199
+ * pings.
+ *
+ * A ping is sent once the connection has been idle for the keepalive
+ * interval. A ping left unanswered for {@link #PING_TIMEOUT_MILLIS} means
+ * the socket is half-open, and the connection is handed to the
+ * reconnection path of the {@link XmppManager}. A dead connection is thus
+ * detected within the interval plus the ping timeout.
+ *
+ * The checks and the ping timeout are AlarmManager alarms that wake the
+ * device, since the clock of a scheduled executor stops in deep sleep,
+ * when an idle device most needs the keepalive. Each alarm takes a short
+ * wake lock, so that the ping is written before the device sleeps again.
+ *
+ * The interval is learned per network: after a few answered pings it is
+ * raised towards the lowest interval known to fail. A timed out ping falls
+ * back to the last interval known to be safe, and after
+ * {@link #FAILURES_BEFORE_ADJUSTING} consecutive timeouts the failing
+ * interval is taken as the ceiling, or the safe interval is lowered, so
+ * that a single lost ping does not shorten the interval for good. The
+ * intervals and the failure count are persisted in the shared
+ * preferences, keyed by the network type and name.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class KeepAliveManager {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(KeepAliveManager.class);
+
+    public static final String ELEMENT_NAME = "ping";
+
+    public static final String NAMESPACE = "urn:xmpp:ping";
+
+    public static final long MIN_INTERVAL_MILLIS = 30 * 1000L;
+
+    public static final long MAX_INTERVAL_MILLIS = 28 * 60 * 1000L;
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 4 * 60 * 1000L;
+
+    public static final long PING_TIMEOUT_MILLIS = 15 * 1000L;
+
+    /** Answered pings needed before a longer interval is probed. */
+    private static final int SUCCESSES_BEFORE_PROBE = 3;
+
+    /** Probing stops once the safe interval is this close to the ceiling. */
+    private static final long PROBE_RESOLUTION_MILLIS = 30 * 1000L;
+
+    /** Consecutive timeouts needed before the intervals are lowered. */
+    private static final int FAILURES_BEFORE_ADJUSTING = 2;
+
+    private static final long WAKE_LOCK_MILLIS = 10 * 1000L;
+
+    private static final String PREF_SAFE = "KEEPALIVE_SAFE_";
+
+    private static final String PREF_CEILING = "KEEPALIVE_CEILING_";
+
+    private static final String PREF_FAILURES = "KEEPALIVE_FAILURES_";
+
+    private final XmppManager xmppManager;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final PreferenceStore sharedPrefs;
+
+    private final Context context;
+
+    private final AlarmManager alarmManager;
+
+    private final PowerManager.WakeLock wakeLock;
+
+    private final String checkAction;
+
+    private final String timeoutAction;
+
+    private final PendingIntent checkIntent;
+
+    private final PendingIntent timeoutIntent;
+
+    //闹钟到时，在定时任务的线程上检查或处理超时
+    private final BroadcastReceiver alarmReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            wakeLock.acquire(WAKE_LOCK_MILLIS);
+            String action = intent.getAction();
+            if (checkAction.equals(action)) {
+                execute(checkTask);
+            } else if (timeoutAction.equals(action)) {
+                execute(timeoutTask);
+            }
+        }
+    };
+
+    private final PacketListener activityListener = new PacketListener() {
+        public void processPacket(Packet packet) {
+            activity();
+        }
+    };
+
+    private final PacketListener inboundListener = new PacketListener() {
+        public void processPacket(Packet packet) {
+            received(packet);
+        }
+    };
+
+    private final PacketFilter allFilter = new PacketFilter() {
+        public boolean accept(Packet packet) {
+            return true;
+        }
+    };
+
+    private final Runnable checkTask = new Runnable() {
+        public void run() {
+            check();
+        }
+    };
+
+    private final Runnable timeoutTask = new Runnable() {
+        public void run() {
+            timedOut();
+        }
+    };
+
+    private XMPPConnection connection;
+
+    private String networkKey;
+
+    private long safeInterval;
+
+    private long ceiling;
+
+    private long interval;
+
+    private int successes;
+
+    private int failures;
+
+    private boolean receiverRegistered;
+
+    private boolean checkPending;
+
+    private boolean timeoutPending;
+
+    private volatile long lastActivity;
+
+    private String pendingPingId;
+
+    private long pingSentAt;
+
+    private long pingsSent;
+
+    private long pingTimeouts;
+
+    private long lastRoundTripMillis;
+
+    KeepAliveManager(XmppManager xmppManager,
+            ScheduledExecutorService scheduler, PreferenceStore sharedPrefs) {
+        this.xmppManager = xmppManager;
+        this.scheduler = scheduler;
+        this.sharedPrefs = sharedPrefs;
+        this.context = xmppManager.getContext();
+        alarmManager = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        PowerManager powerManager = (PowerManager) context
+                .getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                LOGTAG);
+        // 动作名带上包名，避免和其他应用的广播冲突
+        checkAction = context.getPackageName() + ".KEEPALIVE_CHECK";
+        timeoutAction = context.getPackageName() + ".KEEPALIVE_TIMEOUT";
+        checkIntent = PendingIntent.getBroadcast(context, 0, new Intent(
+                checkAction), 0);
+        timeoutIntent = PendingIntent.getBroadcast(context, 0, new Intent(
+                timeoutAction), 0);
+        // smack's whitespace keepalive wakes the radio every 30 seconds
+        SmackConfiguration.setKeepAliveInterval(-1);
+    }
+
+    /**
+     * Starts the keepalive for the connection that just became ready.
+     */
+    public void start(XMPPConnection connection) {
+        synchronized (this) {
+            stopInternal();
+            this.connection = connection;
+            networkKey = currentNetworkKey();
+            safeInterval = sharedPrefs.getLong(PREF_SAFE + networkKey,
+                    DEFAULT_INTERVAL_MILLIS);
+            ceiling = sharedPrefs.getLong(PREF_CEILING + networkKey,
+                    MAX_INTERVAL_MILLIS + 1);
+            failures = sharedPrefs.getInt(PREF_FAILURES + networkKey, 0);
+            interval = safeInterval;
+            successes = 0;
+            lastActivity = SystemClock.elapsedRealtime();
+            if (!receiverRegistered) {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(checkAction);
+                filter.addAction(timeoutAction);
+                context.registerReceiver(alarmReceiver, filter);
+                receiverRegistered = true;
+            }
+            scheduleCheck(interval);
+            Log.d(LOGTAG, "Keepalive on " + networkKey + " every " + interval
+                    + " ms (ceiling " + ceiling + " ms)");
+        }
+        connection.addPacketSendingListener(activityListener, allFilter);
+        connection.addPacketListener(inboundListener, allFilter);
+    }
+
+    /**
+     * Stops the keepalive, for example when the connection is lost or
+     * closed.
+     */
+    public synchronized void stop() {
+        stopInternal();
+    }
+
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    public synchronized long getSafeInterval() {
+        return safeInterval;
+    }
+
+    public synchronized String getNetworkKey() {
+        return networkKey;
+    }
+
+    public synchronized long getPingsSent() {
+        return pingsSent;
+    }
+
+    public synchronized long getPingTimeouts() {
+        return pingTimeouts;
+    }
+
+    public synchronized long getLastRoundTripMillis() {
+        return lastRoundTripMillis;
+    }
+
+    private void stopInternal() {
+        if (checkPending) {
+            alarmManager.cancel(checkIntent);
+            checkPending = false;
+        }
+        cancelTimeout();
+        if (receiverRegistered) {
+            context.unregisterReceiver(alarmReceiver);
+            receiverRegistered = false;
+        }
+        pendingPingId = null;
+        if (connection != null) {
+            connection.removePacketSendingListener(activityListener);
+            connection.removePacketListener(inboundListener);
+            connection = null;
+        }
+    }
+
+    private void activity() {
+        lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    private void received(Packet packet) {
+        activity();
+        XMPPConnection replyTo = null;
+        synchronized (this) {
+            if (pendingPingId != null
+                    && pendingPingId.equals(packet.getPacketID())) {
+                answered();
+            } else if (packet instanceof Ping
+                    && ((Ping) packet).getType() == IQ.Type.GET) {
+                replyTo = connection;
+            }
+        }
+        if (replyTo != null) {
+            // 回复服务器的ping
+            replyTo.sendPacket(IQ.createResultIQ((IQ) packet));
+        }
+    }
+
+    /**
+     * Sends a ping if the connection has been idle for the interval,
+     * otherwise waits for the rest of it.
+     */
+    private void check() {
+        XMPPConnection target;
+        Ping ping;
+        synchronized (this) {
+            checkPending = false;
+            if (connection == null || pendingPingId != null) {
+                return;
+            }
+            long idle = SystemClock.elapsedRealtime() - lastActivity;
+            if (idle < interval) {
+                scheduleCheck(interval - idle);
+                return;
+            }
+            target = connection;
+            ping = new Ping(target.getServiceName());
+            pendingPingId = ping.getPacketID();
+            pingSentAt = SystemClock.elapsedRealtime();
+            pingsSent++;
+            timeoutPending = true;
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock
+                    .elapsedRealtime()
+                    + PING_TIMEOUT_MILLIS, timeoutIntent);
+        }
+        try {
+            target.sendPacket(ping);
+        } catch (Exception e) {
+            Log.w(LOGTAG, "Could not send ping: " + e.getMessage());
+        }
+    }
+
+    private void answered() {
+        lastRoundTripMillis = SystemClock.elapsedRealtime() - pingSentAt;
+        pendingPingId = null;
+        cancelTimeout();
+        if (interval > safeInterval || failures > 0) {
+            safeInterval = Math.max(safeInterval, interval);
+            failures = 0;
+            persist();
+        }
+        successes++;
+        if (successes >= SUCCESSES_BEFORE_PROBE) {
+            successes = 0;
+            interval = nextProbe();
+        }
+        Log.d(LOGTAG, "Ping answered in " + lastRoundTripMillis
+                + " ms, next in " + interval + " ms");
+        scheduleCheck(interval);
+    }
+
+    private void timedOut() {
+        synchronized (this) {
+            timeoutPending = false;
+            if (pendingPingId == null || connection == null) {
+                return;
+            }
+            pingTimeouts++;
+            failures++;
+            if (failures < FAILURES_BEFORE_ADJUSTING) {
+                // 一次丢包不足以说明间隔太长，先退回安全间隔再试
+            } else if (interval > safeInterval) {
+                // The probe was too long for the NAT
+                ceiling = interval;
+                failures = 0;
+            } else {
+                // Even the safe interval failed, the network got stricter
+                safeInterval = Math.max(MIN_INTERVAL_MILLIS,
+                        safeInterval * 3 / 4);
+                ceiling = Math.min(ceiling, interval);
+                failures = 0;
+            }
+            interval = safeInterval;
+            successes = 0;
+            persist();
+            Log.w(LOGTAG, "Ping timed out on " + networkKey
+                    + ", connection is half-open (safe interval "
+                    + safeInterval + " ms)");
+            stopInternal();
+        }
+        xmppManager.keepAliveFailed();
+    }
+
+    /**
+     * Picks the next interval to probe: halfway to the known ceiling, or
+     * doubled if no ceiling is known yet.
+     */
+    private long nextProbe() {
+        if (ceiling - safeInterval <= PROBE_RESOLUTION_MILLIS) {
+            return safeInterval;
+        }
+        long next;
+        if (ceiling > MAX_INTERVAL_MILLIS) {
+            next = Math.min(safeInterval * 2, MAX_INTERVAL_MILLIS);
+        } else {
+            next = (safeInterval + ceiling) / 2;
+        }
+        return Math.max(next, safeInterval);
+    }
+
+    private void persist() {
+        PreferenceStore.Editor editor = sharedPrefs.edit();
+        editor.putLong(PREF_SAFE + networkKey, safeInterval);
+        editor.putLong(PREF_CEILING + networkKey, ceiling);
+        editor.putInt(PREF_FAILURES + networkKey, failures);
+        editor.apply();
+    }
+
+    private void scheduleCheck(long delay) {
+        checkPending = true;
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock
+                .elapsedRealtime()
+                + delay, checkIntent);
+    }
+
+    private void cancelTimeout() {
+        if (timeoutPending) {
+            alarmManager.cancel(timeoutIntent);
+            timeoutPending = false;
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            scheduler.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOGTAG, "Scheduler is shut down");
+        }
+    }
+
+    /**
+     * NAT timeouts differ between carriers and access points, so the
+     * network is identified by its type, subtype and name.
+     */
+    private String currentNetworkKey() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) xmppManager
+                .getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null) {
+            return "none";
+        }
+        StringBuilder key = new StringBuilder(networkInfo.getTypeName());
+        if (networkInfo.getType() != ConnectivityManager.TYPE_WIFI) {
+            key.append('_').append(networkInfo.getSubtypeName());
+        }
+        if (networkInfo.getExtraInfo() != null) {
+            key.append('_').append(networkInfo.getExtraInfo());
+        }
+        return key.toString();
+    }
+
+    /**
+     * The XEP-0199 ping request.
+     */
+    public static class Ping extends IQ {
+
+        public Ping() {
+        }
+
+        public Ping(String to) {
+            setType(IQ.Type.GET);
+            setTo(to);
+        }
+
+        @Override
+        public String getChildElementXML() {
+            return "<" + ELEMENT_NAME + " xmlns=\"" + NAMESPACE + "\"/>";
+        }
+    }
+
+    /**
+     * Parses the pings sent by the server.
+     */
+    public static class PingProvider implements IQProvider {
+
+        public PingProvider() {
+        }
+
+        public IQ parseIQ(XmlPullParser parser) throws Exception {
+            while (parser.getEventType() != XmlPullParser.END_TAG
+                    || !ELEMENT_NAME.equals(parser.getName())) {
+                parser.next();
+            }
+            return new Ping();
+        }
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs the service tasks on lanes, each with its own thread and a bounded
+ * queue ordered by priority, then by submission. The notifications do not
+ * go through a lane: the packet reader hands them to the
+ * {@link DeliveryPipeline}, which has its own threads and backpressure.
+ *
+ * When the queue of a lane is full, the lane rejects the task. The high
+ * priority tasks are never rejected and do not count against the
+ * capacity.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class LaneScheduler {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(LaneScheduler.class);
+
+    /**
+     * The lanes.
+     */
+    public enum Lane {
+        /** Connection lifecycle: connect, register, login, disconnect. */
+        CONTROL("Xmpp Control Thread", 32);
+
+        final String threadName;
+
+        final int capacity;
+
+        Lane(String threadName, int capacity) {
+            this.threadName = threadName;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * The priorities within a lane, highest first.
+     */
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private final Map<Lane, LaneExecutor> executors = new EnumMap<Lane, LaneExecutor>(
+            Lane.class);
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    public LaneScheduler() {
+        for (Lane lane : Lane.values()) {
+            executors.put(lane, new LaneExecutor(lane));
+        }
+    }
+
+    /**
+     * Submits the task to the lane.
+     * @return the future of the task, or null if it was rejected
+     */
+    public Future<?> submit(Lane lane, Priority priority, Runnable task) {
+        LaneExecutor executor = executors.get(lane);
+        if (executor.isShutdown()) {
+            return null;
+        }
+        boolean bounded = priority != Priority.HIGH;
+        if (bounded && !executor.room.tryAcquire()) {
+            executor.stats.rejected.incrementAndGet();
+            Log.w(LOGTAG, lane + " lane full, task rejected");
+            return null;
+        }
+        LaneTask laneTask = new LaneTask(executor, priority, task, bounded);
+        try {
+            executor.execute(laneTask);
+        } catch (RejectedExecutionException e) {
+            // Shut down in the meantime
+            if (bounded) {
+                executor.room.release();
+            }
+            return null;
+        }
+        executor.stats.queued(executor.getQueue().size());
+        return laneTask;
+    }
+
+    public boolean isShutdown() {
+        return executors.get(Lane.CONTROL).isShutdown();
+    }
+
+    /**
+     * Lets the queued tasks run, and accepts no new ones.
+     */
+    public void shutdown() {
+        for (LaneExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Waits until the tasks queued before the shutdown have run.
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + unit.toMillis(timeout);
+        for (LaneExecutor executor : executors.values()) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (!executor.awaitTermination(Math.max(remaining, 0L),
+                    TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current queue depth of the lane.
+     */
+    public int getQueueDepth(Lane lane) {
+        return executors.get(lane).getQueue().size();
+    }
+
+    public LaneSnapshot getSnapshot(Lane lane) {
+        LaneExecutor executor = executors.get(lane);
+        return new LaneSnapshot(lane, executor.getQueue().size(),
+                executor.stats);
+    }
+
+    private static final class LaneExecutor extends ThreadPoolExecutor {
+
+        final Stats stats = new Stats();
+
+        // 队列中的空位，高优先级的任务不占用
+        final Semaphore room;
+
+        LaneExecutor(final Lane lane) {
+            super(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(16),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, lane.threadName);
+                        }
+                    });
+            room = new Semaphore(lane.capacity);
+        }
+    }
+
+    private final class LaneTask extends FutureTask<Object> implements
+            Comparable<LaneTask> {
+
+        private final LaneExecutor executor;
+
+        private final Priority priority;
+
+        private final long seq;
+
+        private final long queuedAt;
+
+        private final boolean holdsRoom;
+
+        LaneTask(LaneExecutor executor, Priority priority, Runnable task,
+                boolean holdsRoom) {
+            super(task, null);
+            this.executor = executor;
+            this.priority = priority;
+            this.holdsRoom = holdsRoom;
+            this.seq = sequence.getAndIncrement();
+            this.queuedAt = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            if (holdsRoom) {
+                executor.room.release();
+            }
+            executor.stats.started(SystemClock.elapsedRealtime() - queuedAt);
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            executor.stats.completed.incrementAndGet();
+        }
+
+        public int compareTo(LaneTask other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private static final class Stats {
+
+        final AtomicLong completed = new AtomicLong();
+
+        final AtomicLong rejected = new AtomicLong();
+
+        long started;
+
+        long totalWait;
+
+        long maxWait;
+
+        int maxDepth;
+
+        synchronized void queued(int depth) {
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        synchronized void started(long wait) {
+            started++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+        }
+    }
+
+    /**
+     * The queue depth and wait time of one lane.
+     */
+    public static final class LaneSnapshot {
+
+        private final Lane lane;
+
+        private final int queueDepth;
+
+        private final int maxQueueDepth;
+
+        private final long started;
+
+        private final long completed;
+
+        private final long rejected;
+
+        private final long totalWait;
+
+        private final long maxWait;
+
+        LaneSnapshot(Lane lane, int queueDepth, Stats stats) {
+            this.lane = lane;
+            this.queueDepth = queueDepth;
+            synchronized (stats) {
+                this.maxQueueDepth = stats.maxDepth;
+                this.started = stats.started;
+                this.totalWait = stats.totalWait;
+                this.maxWait = stats.maxWait;
+            }
+            this.completed = stats.completed.get();
+            this.rejected = stats.rejected.get();
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Returns the number of tasks rejected because the lane was full.
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getMeanWaitMillis() {
+            return started == 0 ? 0 : totalWait / started;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWait;
+        }
+
+        @Override
+        public String toString() {
+            return lane + " depth=" + queueDepth + " maxDepth="
+                    + maxQueueDepth + " started=" + started + " completed="
+                    + completed + " rejected=" + rejected + " meanWait="
+                    + getMeanWaitMillis()
+                    + " maxWait=" + maxWait;
+        }
+    }
+
+}
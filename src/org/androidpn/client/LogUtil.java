@@ -15,6 +15,8 @@
  */
 package org.androidpn.client;
 
+import android.util.Log;
+
 /** 
  * Utility class for LogCat.
  *
@@ -22,9 +24,27 @@ package org.androidpn.client;
  */
 public class LogUtil {
     
+    private static final int MAX_TAG_LENGTH = 23;
+    
     @SuppressWarnings("unchecked")
     public static String makeLogTag(Class cls) {
         return "Androidpn_" + cls.getSimpleName();
     }
 
+    /**
+     * Returns true if debug logging is enabled for the tag. The platform
+     * only accepts tags of up to 23 characters here, so longer tags are
+     * truncated.
+     */
+    public static boolean isDebugEnabled(String tag) {
+        if (tag.length() > MAX_TAG_LENGTH) {
+            tag = tag.substring(0, MAX_TAG_LENGTH);
+        }
+        try {
+            return Log.isLoggable(tag, Log.DEBUG);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
 }
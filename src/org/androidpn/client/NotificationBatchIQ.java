@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** 
+ * This class represents an IQ packet carrying several notifications, for
+ * example the ones queued on the server while the client was offline.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class NotificationBatchIQ extends RoutableIQ {
+
+    private final List<NotificationIQ> notifications = new ArrayList<NotificationIQ>();
+
+    public NotificationBatchIQ() {
+    }
+
+    @Override
+    public String getElementName() {
+        return NotificationIQProvider.BATCH_ELEMENT_NAME;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NotificationIQProvider.NAMESPACE;
+    }
+
+    @Override
+    public String getChildElementXML() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("<").append(getElementName()).append(" xmlns=\"").append(
+                getNamespace()).append("\">");
+        for (NotificationIQ notification : notifications) {
+            if (notification.getId() != null) {
+                buf.append("<notification><id>").append(notification.getId())
+                        .append("</id></notification>");
+            }
+        }
+        buf.append("</").append(getElementName()).append("> ");
+        return buf.toString();
+    }
+
+    public void addNotification(NotificationIQ notification) {
+        notifications.add(notification);
+    }
+
+    public List<NotificationIQ> getNotifications() {
+        return Collections.unmodifiableList(notifications);
+    }
+
+}
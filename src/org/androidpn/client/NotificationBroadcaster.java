@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * Bus subscriber that broadcasts the notifications, for the receivers
+ * outside of the service. It is only registered when the broadcast is
+ * enabled in the configuration.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class NotificationBroadcaster implements NotificationBus.Subscriber {
+
+    private final Context context;
+
+    public NotificationBroadcaster(Context context) {
+        this.context = context;
+    }
+
+    public void onNotifications(List<NotificationIQ> notifications) {
+        if (notifications.size() == 1) {
+            context.sendBroadcast(createIntent(notifications.get(0)));
+        } else {
+            context.sendBroadcast(createBatchIntent(notifications));
+        }
+    }
+
+    private Intent createIntent(NotificationIQ notification) {
+        Intent intent = new Intent(Constants.ACTION_SHOW_NOTIFICATION);
+        intent.putExtra(Constants.NOTIFICATION_ID, notification.getId());
+        intent.putExtra(Constants.NOTIFICATION_API_KEY, notification
+                .getApiKey());
+        intent.putExtra(Constants.NOTIFICATION_TITLE, notification.getTitle());
+        intent.putExtra(Constants.NOTIFICATION_MESSAGE, notification
+                .getMessage());
+        intent.putExtra(Constants.NOTIFICATION_URI, notification.getUri());
+        if (!notification.getExtras().isEmpty()) {
+            intent.putExtra(Constants.NOTIFICATION_EXTRAS, notification
+                    .getExtras().toBundle());
+        }
+        //                intent.setData(Uri.parse((new StringBuilder(
+        //                        "notif://notification.androidpn.org/")).append(
+        //                        notificationApiKey).append("/").append(
+        //                        System.currentTimeMillis()).toString()));
+        return intent;
+    }
+
+    /**
+     * 整批通知只发送一个广播，字段以数组的形式传递
+     */
+    private Intent createBatchIntent(List<NotificationIQ> notifications) {
+        int size = notifications.size();
+        String[] ids = new String[size];
+        String[] apiKeys = new String[size];
+        String[] titles = new String[size];
+        String[] messages = new String[size];
+        String[] uris = new String[size];
+        Bundle extras = new Bundle();
+        for (int i = 0; i < size; i++) {
+            NotificationIQ notification = notifications.get(i);
+            ids[i] = notification.getId();
+            apiKeys[i] = notification.getApiKey();
+            titles[i] = notification.getTitle();
+            messages[i] = notification.getMessage();
+            uris[i] = notification.getUri();
+            if (!notification.getExtras().isEmpty()) {
+                extras.putBundle(String.valueOf(i), notification.getExtras()
+                        .toBundle());
+            }
+        }
+        Intent intent = new Intent(Constants.ACTION_SHOW_NOTIFICATIONS);
+        intent.putExtra(Constants.NOTIFICATION_IDS, ids);
+        intent.putExtra(Constants.NOTIFICATION_API_KEYS, apiKeys);
+        intent.putExtra(Constants.NOTIFICATION_TITLES, titles);
+        intent.putExtra(Constants.NOTIFICATION_MESSAGES, messages);
+        intent.putExtra(Constants.NOTIFICATION_URIS, uris);
+        intent.putExtra(Constants.NOTIFICATION_EXTRAS, extras);
+        return intent;
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+/**
+ * Delivers the received notifications to the subscribers in this process,
+ * without a broadcast. The subscribers are called in registration order,
+ * on the thread that posts the notifications; a subscriber that needs
+ * another thread hands the notifications over itself.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class NotificationBus {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(NotificationBus.class);
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    /**
+     * Receives the notifications posted to the bus.
+     */
+    public interface Subscriber {
+
+        /**
+         * @param notifications the notifications received together, at
+         *            least one
+         */
+        void onNotifications(List<NotificationIQ> notifications);
+    }
+
+    public void register(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unregister(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    public void post(NotificationIQ notification) {
+        post(Collections.singletonList(notification));
+    }
+
+    /**
+     * Delivers the notifications to every subscriber. A failing subscriber
+     * does not keep the others from receiving them.
+     */
+    public void post(List<NotificationIQ> notifications) {
+        if (notifications.isEmpty()) {
+            return;
+        }
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.onNotifications(notifications);
+            } catch (RuntimeException e) {
+                Log.e(LOGTAG, "Subscriber " + subscriber + " failed", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Bus subscriber that groups the notifications of a burst by api key
+ * before they reach the {@link Notifier}.
+ *
+ * The notifications received within {@link #WINDOW_MILLIS} are shown
+ * together. An api key with a single notification in the window gets an
+ * ordinary notification; an api key with more gets one summary
+ * notification, which is updated in place while its notifications keep
+ * coming, until it has been quiet for {@link #SUMMARY_MILLIS}. All the
+ * work runs on the handler's thread.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class NotificationCoalescer implements NotificationBus.Subscriber {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(NotificationCoalescer.class);
+
+    public static final long WINDOW_MILLIS = 500L;
+
+    public static final long SUMMARY_MILLIS = 60 * 1000L;
+
+    private final Notifier notifier;
+
+    private final Handler handler;
+
+    //按apiKey分组的待显示通知，保持到达顺序
+    private final Map<String, List<NotificationIQ>> pending = new LinkedHashMap<String, List<NotificationIQ>>();
+
+    //正在显示汇总通知的apiKey
+    private final Map<String, Summary> summaries = new HashMap<String, Summary>();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private boolean flushScheduled;
+
+    public NotificationCoalescer(Notifier notifier, Handler handler) {
+        this.notifier = notifier;
+        this.handler = handler;
+    }
+
+    public void onNotifications(final List<NotificationIQ> notifications) {
+        handler.post(new Runnable() {
+            public void run() {
+                add(notifications);
+            }
+        });
+    }
+
+    private void add(List<NotificationIQ> notifications) {
+        for (NotificationIQ notification : notifications) {
+            String apiKey = notification.getApiKey() == null ? ""
+                    : notification.getApiKey();
+            List<NotificationIQ> group = pending.get(apiKey);
+            if (group == null) {
+                group = new ArrayList<NotificationIQ>();
+                pending.put(apiKey, group);
+            }
+            // 同一通知的多次更新只显示最新的一次
+            removeUpdated(group, notification.getId());
+            group.add(notification);
+        }
+        // 窗口从第一条通知到达时开始，延迟不超过WINDOW_MILLIS
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushTask, WINDOW_MILLIS);
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Summary> it = summaries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().updatedAt >= SUMMARY_MILLIS) {
+                it.remove();
+            }
+        }
+
+        List<NotificationIQ> singles = new ArrayList<NotificationIQ>();
+        for (Map.Entry<String, List<NotificationIQ>> entry : pending
+                .entrySet()) {
+            String apiKey = entry.getKey();
+            List<NotificationIQ> group = entry.getValue();
+            Summary summary = summaries.get(apiKey);
+            if (summary == null && group.size() == 1) {
+                singles.add(group.get(0));
+                continue;
+            }
+            if (summary == null) {
+                summary = new Summary();
+                summaries.put(apiKey, summary);
+            }
+            summary.count += group.size();
+            summary.updatedAt = now;
+            Log.d(LOGTAG, "Coalesced " + group.size() + " notifications of "
+                    + apiKey);
+            notifier.notifySummary(apiKey, group.get(group.size() - 1),
+                    summary.count);
+        }
+        pending.clear();
+        notifier.notify(singles);
+    }
+
+    private static void removeUpdated(List<NotificationIQ> group, String id) {
+        if (id == null || id.length() == 0) {
+            return;
+        }
+        Iterator<NotificationIQ> it = group.iterator();
+        while (it.hasNext()) {
+            if (id.equals(it.next().getId())) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    private static final class Summary {
+
+        int count;
+
+        long updatedAt;
+    }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Remembers the ids of the recently delivered notifications, so that a
+ * notification redelivered by the server after a reconnect is dropped
+ * before any broadcast or NotificationManager work. A notification with a
+ * known id but a different content is an update and is delivered.
+ *
+ * The index keeps at most {@link #MAX_ENTRIES} ids for at most
+ * {@link #WINDOW_MILLIS}, least recently seen first out. It is saved to a
+ * small binary file shortly after it changes, and loaded on first use.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class NotificationDeduplicator {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(NotificationDeduplicator.class);
+
+    public static final int MAX_ENTRIES = 512;
+
+    public static final long WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final long SAVE_DELAY_MILLIS = 2 * 1000L;
+
+    private static final String FILE_NAME = "notification_ids";
+
+    private static final int FILE_VERSION = 2;
+
+    private final File file;
+
+    private final ScheduledExecutorService scheduler;
+
+    // Access ordered, the eldest entry is the least recently seen id
+    private final LinkedHashMap<String, Delivery> seen = new LinkedHashMap<String, Delivery>(
+            64, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, Delivery> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final Runnable saveTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private boolean loaded;
+
+    private boolean dirty;
+
+    private Future<?> pendingSave;
+
+    private long duplicates;
+
+    public NotificationDeduplicator(Context context,
+            ScheduledExecutorService scheduler) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Records the delivery of the notification.
+     * @return true if the same notification was already delivered, false
+     *         if it is new, an update or has no id
+     */
+    public synchronized boolean isDuplicate(NotificationIQ notification) {
+        String notificationId = notification.getId();
+        if (notificationId == null || notificationId.length() == 0) {
+            return false;
+        }
+        load();
+        long now = System.currentTimeMillis();
+        int fingerprint = fingerprint(notification);
+        Delivery delivery = seen.get(notificationId);
+        if (delivery != null && now - delivery.deliveredAt < WINDOW_MILLIS
+                && delivery.fingerprint == fingerprint) {
+            duplicates++;
+            Log.d(LOGTAG, "Dropped duplicate notification " + notificationId);
+            return true;
+        }
+        seen.put(notificationId, new Delivery(now, fingerprint));
+        dirty = true;
+        scheduleSave();
+        return false;
+    }
+
+    public synchronized int size() {
+        return seen.size();
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Writes the index to disk if it has changed.
+     */
+    public synchronized void flush() {
+        pendingSave = null;
+        if (!dirty) {
+            return;
+        }
+        expire(System.currentTimeMillis());
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(seen.size());
+            for (Map.Entry<String, Delivery> entry : seen.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().deliveredAt);
+                out.writeInt(entry.getValue().fingerprint);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not save the notification ids", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                long deliveredAt = in.readLong();
+                seen.put(id, new Delivery(deliveredAt, in.readInt()));
+            }
+            expire(System.currentTimeMillis());
+            Log.d(LOGTAG, "Loaded " + seen.size() + " notification ids");
+        } catch (FileNotFoundException e) {
+            // Nothing delivered yet
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not load the notification ids", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Delivery> it = seen.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().deliveredAt >= WINDOW_MILLIS) {
+                it.remove();
+            }
+        }
+    }
+
+    private static int fingerprint(NotificationIQ notification) {
+        int hash = hashCode(notification.getApiKey());
+        hash = hash * 31 + hashCode(notification.getTitle());
+        hash = hash * 31 + hashCode(notification.getMessage());
+        hash = hash * 31 + hashCode(notification.getUri());
+        return hash * 31 + notification.getExtras().hashCode();
+    }
+
+    private static int hashCode(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private void scheduleSave() {
+        if (pendingSave != null) {
+            return;
+        }
+        try {
+            pendingSave = scheduler.schedule(saveTask, SAVE_DELAY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOGTAG, "Scheduler is shut down");
+        }
+    }
+
+    private static final class Delivery {
+
+        final long deliveredAt;
+
+        final int fingerprint;
+
+        Delivery(long deliveredAt, int fingerprint) {
+            this.deliveredAt = deliveredAt;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+}
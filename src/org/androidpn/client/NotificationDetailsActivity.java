@@ -16,9 +16,7 @@
 package org.androidpn.client;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
@@ -43,6 +41,8 @@ public class NotificationDetailsActivity extends Activity {
 
     private String callbackActivityClassName;
 
+    private Bundle notificationExtras;
+
     public NotificationDetailsActivity() {
     }
 
@@ -50,8 +50,7 @@ public class NotificationDetailsActivity extends Activity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        SharedPreferences sharedPrefs = this.getSharedPreferences(
-                Constants.SHARED_PREFERENCE_NAME, Context.MODE_PRIVATE);
+        PreferenceStore sharedPrefs = PreferenceStore.getInstance(this);
         callbackActivityPackageName = sharedPrefs.getString(
                 Constants.CALLBACK_ACTIVITY_PACKAGE_NAME, "");
         callbackActivityClassName = sharedPrefs.getString(
@@ -68,6 +67,8 @@ public class NotificationDetailsActivity extends Activity {
                 .getStringExtra(Constants.NOTIFICATION_MESSAGE);
         String notificationUri = intent
                 .getStringExtra(Constants.NOTIFICATION_URI);
+        notificationExtras = intent
+                .getBundleExtra(Constants.NOTIFICATION_EXTRAS);
 
         Log.d(LOGTAG, "notificationId=" + notificationId);
         Log.d(LOGTAG, "notificationApiKey=" + notificationApiKey);
@@ -153,6 +154,11 @@ public class NotificationDetailsActivity extends Activity {
                     // intent.setFlags(Intent.FLAG_ACTIVITY_FORWARD_RESULT);
                     // intent.setFlags(Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
                 }
+                // 把附加参数交给目标Activity，省去再次请求服务器
+                if (notificationExtras != null) {
+                    intent.putExtra(Constants.NOTIFICATION_EXTRAS,
+                            notificationExtras);
+                }
 
                 NotificationDetailsActivity.this.startActivity(intent);
                 NotificationDetailsActivity.this.finish();
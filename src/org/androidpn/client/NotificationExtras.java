@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import android.os.Bundle;
+
+/**
+ * The immutable key/value extras of a notification, parsed from its
+ * &lt;extras&gt; element. The pairs are kept in two arrays, in document
+ * order; there are only a few of them, so lookups scan the keys.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public final class NotificationExtras extends AbstractMap<String, String> {
+
+    public static final NotificationExtras EMPTY = new NotificationExtras(
+            new String[0], new String[0]);
+
+    private final String[] keys;
+
+    private final String[] values;
+
+    private NotificationExtras(String[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Creates the extras from a bundle made by {@link #toBundle()}.
+     */
+    public static NotificationExtras fromBundle(Bundle bundle) {
+        if (bundle == null || bundle.size() == 0) {
+            return EMPTY;
+        }
+        Builder builder = new Builder();
+        for (String key : bundle.keySet()) {
+            builder.put(key, bundle.getString(key));
+        }
+        return builder.build();
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            bundle.putString(keys[i], values[i]);
+        }
+        return bundle;
+    }
+
+    @Override
+    public String get(Object key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+
+                    private int index;
+
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    public Map.Entry<String, String> next() {
+                        if (index >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = new Entry(
+                                keys[index], values[index]);
+                        index++;
+                        return entry;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    private static final class Entry implements Map.Entry<String, String> {
+
+        private final String key;
+
+        private final String value;
+
+        Entry(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String setValue(String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) && value.equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * Collects the pairs while parsing. A repeated key replaces the earlier
+     * value.
+     */
+    public static final class Builder {
+
+        private final List<String> keys = new ArrayList<String>(4);
+
+        private final List<String> values = new ArrayList<String>(4);
+
+        public Builder put(String key, String value) {
+            if (key == null) {
+                return this;
+            }
+            if (value == null) {
+                value = "";
+            }
+            int index = keys.indexOf(key);
+            if (index >= 0) {
+                values.set(index, value);
+            } else {
+                keys.add(key);
+                values.add(value);
+            }
+            return this;
+        }
+
+        public NotificationExtras build() {
+            if (keys.isEmpty()) {
+                return EMPTY;
+            }
+            return new NotificationExtras(keys.toArray(new String[keys
+                    .size()]), values.toArray(new String[values.size()]));
+        }
+    }
+
+}
@@ -15,14 +15,12 @@
  */
 package org.androidpn.client;
 
-import org.jivesoftware.smack.packet.IQ;
-
 /** 
  * This class represents a notifcatin IQ packet.
  *
  * @author Sehwan Noh (devnoh@gmail.com)
  */
-public class NotificationIQ extends IQ {
+public class NotificationIQ extends RoutableIQ {
 
     private String id;
 
@@ -34,18 +32,30 @@ public class NotificationIQ extends IQ {
 
     private String uri;
 
+    private NotificationExtras extras = NotificationExtras.EMPTY;
+
     public NotificationIQ() {
     }
 
+    @Override
+    public String getElementName() {
+        return NotificationIQProvider.ELEMENT_NAME;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NotificationIQProvider.NAMESPACE;
+    }
+
     @Override
     public String getChildElementXML() {
         StringBuilder buf = new StringBuilder();
-        buf.append("<").append("notification").append(" xmlns=\"").append(
-                "androidpn:iq:notification").append("\">");
+        buf.append("<").append(getElementName()).append(" xmlns=\"").append(
+                getNamespace()).append("\">");
         if (id != null) {
             buf.append("<id>").append(id).append("</id>");
         }
-        buf.append("</").append("notification").append("> ");
+        buf.append("</").append(getElementName()).append("> ");
         return buf.toString();
     }
 
@@ -89,4 +99,12 @@ public class NotificationIQ extends IQ {
         this.uri = url;
     }
 
+    public NotificationExtras getExtras() {
+        return extras;
+    }
+
+    public void setExtras(NotificationExtras extras) {
+        this.extras = extras == null ? NotificationExtras.EMPTY : extras;
+    }
+
 }
@@ -24,44 +24,197 @@ import android.util.Log;
 /** 
  * This class parses incoming IQ packets to NotificationIQ objects.
  *解析Push收到的IQ数据包为NotificationIQ对象
+ * The known child elements have names of distinct lengths, so the element
+ * is dispatched on its name length with a single equals check. Unknown
+ * subtrees are skipped by depth.
+ * The &lt;extras&gt; element holds key/value pairs, one child element per
+ * pair: &lt;extra key="k"&gt;v&lt;/extra&gt;, or &lt;k&gt;v&lt;/k&gt;.
+ * A &lt;notifications&gt; element holds a batch of &lt;notification&gt;
+ * elements, and is parsed to a NotificationBatchIQ.
  * @author Sehwan Noh (devnoh@gmail.com)
  */
 public class NotificationIQProvider implements IQProvider {
 
 	private static final String LOGTAG = LogUtil.makeLogTag(NotificationIQProvider.class);
+
+    private static final boolean DEBUG = LogUtil.isDebugEnabled(LOGTAG);
+	
+    public static final String ELEMENT_NAME = "notification";
+
+    public static final String BATCH_ELEMENT_NAME = "notifications";
+
+    public static final String NAMESPACE = "androidpn:iq:notification";
 	
     public NotificationIQProvider() {
     }
 
     @Override
     public IQ parseIQ(XmlPullParser parser) throws Exception {
-        NotificationIQ notification = new NotificationIQ();
-        for (boolean done = false; !done;) {
+        if (BATCH_ELEMENT_NAME.equals(parser.getName())) {
+            return parseBatch(parser);
+        }
+        return parseNotification(parser);
+    }
+
+    /**
+     * Parses the &lt;notifications&gt; element the parser is on.
+     */
+    private static NotificationBatchIQ parseBatch(XmlPullParser parser)
+            throws Exception {
+        NotificationBatchIQ batch = new NotificationBatchIQ();
+        int depth = parser.getDepth();
+        for (;;) {
             int eventType = parser.next();
-            Log.d(LOGTAG, "parseIQ.....eventType: "+eventType);
             if (eventType == XmlPullParser.START_TAG) {
-                if ("id".equals(parser.getName())) {
-                    notification.setId(parser.nextText());
-                }
-                if ("apiKey".equals(parser.getName())) {
-                    notification.setApiKey(parser.nextText());
-                }
-                if ("title".equals(parser.getName())) {
-                    notification.setTitle(parser.nextText());
-                }
-                if ("message".equals(parser.getName())) {
-                    notification.setMessage(parser.nextText());
-                }
-                if ("uri".equals(parser.getName())) {
-                    notification.setUri(parser.nextText());
+                if (ELEMENT_NAME.equals(parser.getName())) {
+                    batch.addNotification(parseNotification(parser));
+                } else {
+                    skipElement(parser);
                 }
             } else if (eventType == XmlPullParser.END_TAG
-                    && "notification".equals(parser.getName())) {
-                done = true;
+                    && parser.getDepth() == depth) {
+                break;
+            } else if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new IllegalStateException("Unexpected end of stream");
             }
         }
+        if (DEBUG) {
+            Log.d(LOGTAG, "parseBatch()... size="
+                    + batch.getNotifications().size());
+        }
+        return batch;
+    }
 
+    /**
+     * Parses the &lt;notification&gt; element the parser is on.
+     */
+    private static NotificationIQ parseNotification(XmlPullParser parser)
+            throws Exception {
+        NotificationIQ notification = new NotificationIQ();
+        // The parser is on the <notification> start tag
+        int depth = parser.getDepth();
+        for (;;) {
+            int eventType = parser.next();
+            if (eventType == XmlPullParser.START_TAG) {
+                parseElement(parser, notification);
+            } else if (eventType == XmlPullParser.END_TAG
+                    && parser.getDepth() == depth) {
+                break;
+            } else if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new IllegalStateException("Unexpected end of stream");
+            }
+        }
+        if (DEBUG) {
+            Log.d(LOGTAG, "parseNotification()... id=" + notification.getId());
+        }
         return notification;
     }
 
+    /**
+     * Parses the child element the parser is on, leaving the parser on its
+     * end tag.
+     */
+    private static void parseElement(XmlPullParser parser,
+            NotificationIQ notification) throws Exception {
+        String name = parser.getName();
+        switch (name.length()) {
+        case 2:
+            if ("id".equals(name)) {
+                notification.setId(parser.nextText());
+                return;
+            }
+            break;
+        case 3:
+            if ("uri".equals(name)) {
+                notification.setUri(parser.nextText());
+                return;
+            }
+            break;
+        case 5:
+            if ("title".equals(name)) {
+                notification.setTitle(parser.nextText());
+                return;
+            }
+            break;
+        case 6:
+            if ("apiKey".equals(name)) {
+                notification.setApiKey(parser.nextText());
+                return;
+            }
+            if ("extras".equals(name)) {
+                notification.setExtras(parseExtras(parser));
+                return;
+            }
+            break;
+        case 7:
+            if ("message".equals(name)) {
+                notification.setMessage(parser.nextText());
+                return;
+            }
+            break;
+        default:
+            break;
+        }
+        skipElement(parser);
+    }
+
+    /**
+     * Parses the &lt;extras&gt; element the parser is on.
+     */
+    private static NotificationExtras parseExtras(XmlPullParser parser)
+            throws Exception {
+        NotificationExtras.Builder builder = new NotificationExtras.Builder();
+        int depth = parser.getDepth();
+        for (;;) {
+            int eventType = parser.next();
+            if (eventType == XmlPullParser.START_TAG) {
+                String key = parser.getAttributeValue(null, "key");
+                if (key == null) {
+                    key = parser.getName();
+                }
+                builder.put(key, readText(parser));
+            } else if (eventType == XmlPullParser.END_TAG
+                    && parser.getDepth() == depth) {
+                return builder.build();
+            } else if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new IllegalStateException("Unexpected end of stream");
+            }
+        }
+    }
+
+    /**
+     * Returns the text of the element the parser is on, ignoring any child
+     * elements, and leaves the parser on its end tag.
+     */
+    private static String readText(XmlPullParser parser) throws Exception {
+        int depth = parser.getDepth();
+        String text = null;
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_TAG
+                || parser.getDepth() > depth) {
+            if (eventType == XmlPullParser.TEXT && parser.getDepth() == depth) {
+                text = text == null ? parser.getText() : text
+                        + parser.getText();
+            } else if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new IllegalStateException("Unexpected end of stream");
+            }
+        }
+        return text == null ? "" : text;
+    }
+
+    /**
+     * Skips the element the parser is on, including its children.
+     */
+    private static void skipElement(XmlPullParser parser) throws Exception {
+        int depth = parser.getDepth();
+        int eventType;
+        do {
+            eventType = parser.next();
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new IllegalStateException("Unexpected end of stream");
+            }
+        } while (eventType != XmlPullParser.END_TAG
+                || parser.getDepth() > depth);
+    }
+
 }
@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * An append-only journal of the received notifications, written before
+ * they are dispatched.
+ *
+ * The journal is a sequence of segment files, named after the sequence
+ * number of their first record. Each record is the payload length, the
+ * payload (sequence number, timestamp and notification fields) and its
+ * CRC32, so that a record torn by a crash is detected and cut off when
+ * the journal is opened. Records reach the file system on append, which
+ * survives the death of the process. They are synced to the disk in
+ * batches, every {@link #SYNC_BATCH} records or {@link #SYNC_DELAY_MILLIS}
+ * after an append, whichever comes first.
+ *
+ * A segment is closed at {@link #MAX_SEGMENT_BYTES}. Closed segments
+ * older than {@link #RETENTION_MILLIS}, or that would take the journal
+ * past {@link #MAX_JOURNAL_BYTES}, are deleted by the compaction, oldest
+ * first. The number of segments does not matter, so the short segments
+ * left by a close do not shorten the history.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class NotificationJournal {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(NotificationJournal.class);
+
+    public static final int MAX_SEGMENT_BYTES = 256 * 1024;
+
+    public static final long MAX_JOURNAL_BYTES = 8 * MAX_SEGMENT_BYTES;
+
+    public static final long RETENTION_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    public static final int SYNC_BATCH = 32;
+
+    public static final long SYNC_DELAY_MILLIS = 200L;
+
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+    private static final String DIR_NAME = "journal";
+
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(
+            512);
+
+    private final DataOutputStream recordOut = new DataOutputStream(
+            recordBuffer);
+
+    private final CRC32 crc = new CRC32();
+
+    private final Runnable syncTask = new Runnable() {
+        public void run() {
+            sync();
+        }
+    };
+
+    private boolean opened;
+
+    private FileOutputStream segment;
+
+    private long segmentBytes;
+
+    private long nextSequence = 1;
+
+    private int unsynced;
+
+    private Future<?> pendingSync;
+
+    public NotificationJournal(Context context,
+            ScheduledExecutorService scheduler) {
+        this.dir = new File(context.getFilesDir(), DIR_NAME);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * A journaled notification.
+     */
+    public static final class Entry {
+
+        private final long sequence;
+
+        private final long timestamp;
+
+        private final NotificationIQ notification;
+
+        Entry(long sequence, long timestamp, NotificationIQ notification) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.notification = notification;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Returns the wall clock time the notification was received at.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public NotificationIQ getNotification() {
+            return notification;
+        }
+    }
+
+    /**
+     * Receives the entries during a replay.
+     */
+    public interface Visitor {
+
+        /**
+         * @return false to stop the replay
+         */
+        boolean visit(Entry entry);
+    }
+
+    /**
+     * Appends the notification to the journal.
+     * @return its sequence number, or -1 if it could not be written
+     */
+    public synchronized long append(NotificationIQ notification) {
+        try {
+            return write(notification);
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Could not journal notification "
+                    + notification.getId(), e);
+            closeSegment();
+            return -1;
+        }
+    }
+
+    /**
+     * Appends the notifications to the journal, as one batch.
+     * @return the sequence number of the first one, or -1 if they could not
+     *         be written
+     */
+    public synchronized long appendAll(List<NotificationIQ> notifications) {
+        if (notifications.isEmpty()) {
+            return -1;
+        }
+        try {
+            long first = -1;
+            for (NotificationIQ notification : notifications) {
+                long sequence = write(notification);
+                if (first < 0) {
+                    first = sequence;
+                }
+            }
+            return first;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Could not journal " + notifications.size()
+                    + " notifications", e);
+            closeSegment();
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last record, or 0 if there is
+     * none.
+     */
+    public synchronized long getLastSequence() {
+        try {
+            open();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not open the journal", e);
+        }
+        return nextSequence - 1;
+    }
+
+    /**
+     * Forces the appended records to the disk.
+     */
+    public synchronized void sync() {
+        pendingSync = null;
+        if (segment == null || unsynced == 0) {
+            return;
+        }
+        try {
+            segment.getFD().sync();
+            unsynced = 0;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not sync the journal", e);
+        }
+    }
+
+    /**
+     * Syncs and closes the current segment. The next append opens a new
+     * one.
+     */
+    public synchronized void close() {
+        sync();
+        closeSegment();
+    }
+
+    /**
+     * Replays the records with a sequence number of at least fromSequence,
+     * in order. A torn or corrupt record ends its segment.
+     */
+    public void replay(long fromSequence, Visitor visitor) {
+        File[] segments;
+        synchronized (this) {
+            sync();
+            segments = listSegments();
+        }
+        for (int i = 0; i < segments.length; i++) {
+            // Skip the segments that end before fromSequence
+            if (i + 1 < segments.length
+                    && firstSequence(segments[i + 1]) <= fromSequence) {
+                continue;
+            }
+            if (!replaySegment(segments[i], fromSequence, visitor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deletes the closed segments past the retention period or the size
+     * limit.
+     */
+    public synchronized void compact() {
+        File[] segments = listSegments();
+        long expired = System.currentTimeMillis() - RETENTION_MILLIS;
+        long totalBytes = 0;
+        for (File file : segments) {
+            totalBytes += file.length();
+        }
+        // The newest segment is the one being written
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (totalBytes > MAX_JOURNAL_BYTES
+                    || segments[i].lastModified() < expired) {
+                long length = segments[i].length();
+                if (segments[i].delete()) {
+                    totalBytes -= length;
+                    Log.d(LOGTAG, "Deleted segment " + segments[i].getName());
+                }
+            }
+        }
+    }
+
+    private long write(NotificationIQ notification) throws IOException {
+        // Opens the journal, or the next segment after a rotation
+        open();
+        long sequence = nextSequence;
+        recordBuffer.reset();
+        recordOut.writeLong(sequence);
+        recordOut.writeLong(System.currentTimeMillis());
+        writeString(notification.getId());
+        writeString(notification.getApiKey());
+        writeString(notification.getTitle());
+        writeString(notification.getMessage());
+        writeString(notification.getUri());
+        NotificationExtras extras = notification.getExtras();
+        recordOut.writeInt(extras.size());
+        for (Map.Entry<String, String> entry : extras.entrySet()) {
+            recordOut.writeUTF(entry.getKey());
+            recordOut.writeUTF(entry.getValue());
+        }
+        recordOut.flush();
+
+        byte[] payload = recordBuffer.toByteArray();
+        crc.reset();
+        crc.update(payload);
+        byte[] record = new byte[payload.length + 8];
+        writeInt(record, 0, payload.length);
+        System.arraycopy(payload, 0, record, 4, payload.length);
+        writeInt(record, payload.length + 4, (int) crc.getValue());
+        // One write call per record, so a crash tears at most the last one
+        segment.write(record);
+        segmentBytes += record.length;
+        nextSequence++;
+
+        unsynced++;
+        if (unsynced >= SYNC_BATCH) {
+            sync();
+        } else {
+            scheduleSync();
+        }
+        if (segmentBytes >= MAX_SEGMENT_BYTES) {
+            sync();
+            closeSegment();
+            compact();
+        }
+        return sequence;
+    }
+
+    private void writeString(String value) throws IOException {
+        recordOut.writeBoolean(value != null);
+        if (value != null) {
+            recordOut.writeUTF(value);
+        }
+    }
+
+    private static void writeInt(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Opens the journal on first use: finds the last sequence number and
+     * cuts off a torn record at the end of the last segment.
+     */
+    private void open() throws IOException {
+        if (!opened) {
+            opened = true;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            File[] segments = listSegments();
+            if (segments.length > 0) {
+                recover(segments[segments.length - 1]);
+                compact();
+            }
+        }
+        if (segment == null) {
+            File file = new File(dir, String.format("%016x", nextSequence)
+                    + SUFFIX);
+            segment = new FileOutputStream(file, true);
+            segmentBytes = file.length();
+        }
+    }
+
+    private void recover(File file) throws IOException {
+        final long[] last = { firstSequence(file) - 1 };
+        long validBytes = scan(file, 0, new Visitor() {
+            public boolean visit(Entry entry) {
+                last[0] = entry.getSequence();
+                return true;
+            }
+        });
+        nextSequence = last[0] + 1;
+        if (validBytes < file.length()) {
+            Log.w(LOGTAG, "Truncating torn record in " + file.getName());
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validBytes);
+            } finally {
+                raf.close();
+            }
+        }
+        Log.d(LOGTAG, "Opened journal, next sequence " + nextSequence);
+    }
+
+    private boolean replaySegment(File file, final long fromSequence,
+            final Visitor visitor) {
+        final boolean[] stopped = { false };
+        try {
+            scan(file, fromSequence, new Visitor() {
+                public boolean visit(Entry entry) {
+                    if (!visitor.visit(entry)) {
+                        stopped[0] = true;
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not replay " + file.getName(), e);
+        }
+        return !stopped[0];
+    }
+
+    /**
+     * Reads the valid records of the segment.
+     * @return the length of the valid part of the segment
+     */
+    private static long scan(File file, long fromSequence, Visitor visitor)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        try {
+            byte[] payload = new byte[512];
+            for (;;) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                int checksum;
+                try {
+                    in.readFully(payload, 0, length);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                valid += length + 8;
+                Entry entry = readEntry(payload, length);
+                if (entry.getSequence() >= fromSequence
+                        && !visitor.visit(entry)) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return valid;
+    }
+
+    private static Entry readEntry(byte[] payload, int length)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                payload, 0, length));
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        NotificationIQ notification = new NotificationIQ();
+        notification.setId(readString(in));
+        notification.setApiKey(readString(in));
+        notification.setTitle(readString(in));
+        notification.setMessage(readString(in));
+        notification.setUri(readString(in));
+        int extras = in.readInt();
+        if (extras > 0) {
+            NotificationExtras.Builder builder = new NotificationExtras.Builder();
+            for (int i = 0; i < extras; i++) {
+                builder.put(in.readUTF(), in.readUTF());
+            }
+            notification.setExtras(builder.build());
+        }
+        return new Entry(sequence, timestamp, notification);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private File[] listSegments() {
+        File[] segments = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        // Fixed width hex names sort in sequence order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long firstSequence(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length()
+                    - SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private void scheduleSync() {
+        if (pendingSync != null) {
+            return;
+        }
+        try {
+            pendingSync = scheduler.schedule(syncTask, SYNC_DELAY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, sync right away
+            sync();
+        }
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException ignore) {
+            }
+            segment = null;
+        }
+        if (pendingSync != null) {
+            pendingSync.cancel(false);
+            pendingSync = null;
+        }
+        unsynced = 0;
+    }
+
+}
@@ -15,14 +15,21 @@
  */
 package org.androidpn.client;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Packet;
 
-import android.content.Intent;
 import android.util.Log;
 
 /** 
- * This class notifies the receiver of incoming notifcation packets asynchronously.  
+ * This class notifies the subscribers of incoming notifcation packets.  
+ * Packets are routed to their handler by the namespace and name of their
+ * child element, without serializing them. The handlers run on the
+ * connection's reader thread and hand the notifications to the
+ * {@link DeliveryPipeline}, which keeps them in order per api key and
+ * makes the reader wait while it is full.
  *
  * @author Sehwan Noh (devnoh@gmail.com)
  */
@@ -31,10 +38,44 @@ public class NotificationPacketListener implements PacketListener {
     private static final String LOGTAG = LogUtil
             .makeLogTag(NotificationPacketListener.class);
 
-    private final XmppManager xmppManager;
+    private static final boolean DEBUG = LogUtil.isDebugEnabled(LOGTAG);
+
+    //去重、记录、分发的处理流水线
+    private final DeliveryPipeline pipeline;
+
+    //命名空间 -> 元素名 -> 处理者
+    private final Map<String, Map<String, PacketHandler>> handlers = new HashMap<String, Map<String, PacketHandler>>();
 
     public NotificationPacketListener(XmppManager xmppManager) {
-        this.xmppManager = xmppManager;
+        this.pipeline = xmppManager.getDeliveryPipeline();
+        register(NotificationIQProvider.ELEMENT_NAME,
+                NotificationIQProvider.NAMESPACE, new PacketHandler() {
+                    public void handle(RoutableIQ packet) {
+                        pipeline.submit((NotificationIQ) packet);
+                    }
+                });
+        register(NotificationIQProvider.BATCH_ELEMENT_NAME,
+                NotificationIQProvider.NAMESPACE, new PacketHandler() {
+                    public void handle(RoutableIQ packet) {
+                        pipeline.submit(((NotificationBatchIQ) packet)
+                                .getNotifications());
+                    }
+                });
+    }
+
+    /**
+     * Registers the handler for the packets with the given child element.
+     * Handlers must be registered before the listener is added to the
+     * connection.
+     */
+    public void register(String elementName, String namespace,
+            PacketHandler handler) {
+        Map<String, PacketHandler> byName = handlers.get(namespace);
+        if (byName == null) {
+            byName = new HashMap<String, PacketHandler>();
+            handlers.put(namespace, byName);
+        }
+        byName.put(elementName, handler);
     }
 
     /**
@@ -43,39 +84,30 @@ public class NotificationPacketListener implements PacketListener {
      */
     @Override
     public void processPacket(Packet packet) {
-        Log.d(LOGTAG, "NotificationPacketListener.processPacket()...");
-        Log.d(LOGTAG, "packet.toXML()=" + packet.toXML());
-
-        if (packet instanceof NotificationIQ) {
-            NotificationIQ notification = (NotificationIQ) packet;
-
-            if (notification.getChildElementXML().contains(
-                    "androidpn:iq:notification")) {
-                String notificationId = notification.getId();
-                String notificationApiKey = notification.getApiKey();
-                String notificationTitle = notification.getTitle();
-                String notificationMessage = notification.getMessage();
-                //                String notificationTicker = notification.getTicker();
-                String notificationUri = notification.getUri();
-
-                Intent intent = new Intent(Constants.ACTION_SHOW_NOTIFICATION);
-                intent.putExtra(Constants.NOTIFICATION_ID, notificationId);
-                intent.putExtra(Constants.NOTIFICATION_API_KEY,
-                        notificationApiKey);
-                intent.putExtra(Constants.NOTIFICATION_TITLE,
-                                notificationTitle);
-                intent.putExtra(Constants.NOTIFICATION_MESSAGE,
-                        notificationMessage);
-                intent.putExtra(Constants.NOTIFICATION_URI, notificationUri);
-                //                intent.setData(Uri.parse((new StringBuilder(
-                //                        "notif://notification.androidpn.org/")).append(
-                //                        notificationApiKey).append("/").append(
-                //                        System.currentTimeMillis()).toString()));
-
-                xmppManager.getContext().sendBroadcast(intent);
+        if (!(packet instanceof RoutableIQ)) {
+            return;
+        }
+        RoutableIQ iq = (RoutableIQ) packet;
+        Map<String, PacketHandler> byName = handlers.get(iq.getNamespace());
+        PacketHandler handler = byName == null ? null : byName.get(iq
+                .getElementName());
+        if (handler != null) {
+            if (DEBUG) {
+                Log.d(LOGTAG, "packet.toXML()=" + iq.toXML());
             }
+            handler.handle(iq);
+        } else {
+            Log.w(LOGTAG, "No handler for " + iq.getElementName() + " "
+                    + iq.getNamespace());
         }
+    }
+
+    /**
+     * Handles the packets routed to it.
+     */
+    public interface PacketHandler {
 
+        void handle(RoutableIQ packet);
     }
 
 }
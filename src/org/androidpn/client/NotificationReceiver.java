@@ -15,14 +15,23 @@
  */
 package org.androidpn.client;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Bundle;
 import android.util.Log;
 
 /** 
  * Broadcast receiver that handles push notification messages from the server.
- * This should be registered as receiver in AndroidManifest.xml. 
+ * The service itself shows the notifications through the
+ * {@link NotificationBus}, so this receiver is only for the optional
+ * broadcast of the notificationBroadcast property, in an application that
+ * does not run the service's own subscribers. Do not register it in the
+ * same process as the service with the broadcast enabled: each
+ * notification would be shown twice.
  * 
  * @author Sehwan Noh (devnoh@gmail.com)
  */
@@ -57,6 +66,9 @@ public final class NotificationReceiver extends BroadcastReceiver {
                     .getStringExtra(Constants.NOTIFICATION_MESSAGE);
             String notificationUri = intent
                     .getStringExtra(Constants.NOTIFICATION_URI);
+            NotificationExtras notificationExtras = NotificationExtras
+                    .fromBundle(intent
+                            .getBundleExtra(Constants.NOTIFICATION_EXTRAS));
 
             Log.d(LOGTAG, "notificationId=" + notificationId);
             Log.d(LOGTAG, "notificationApiKey=" + notificationApiKey);
@@ -64,9 +76,16 @@ public final class NotificationReceiver extends BroadcastReceiver {
             Log.d(LOGTAG, "notificationMessage=" + notificationMessage);
             Log.d(LOGTAG, "notificationUri=" + notificationUri);
 
-            Notifier notifier = new Notifier(context);
+            Notifier notifier = Notifier.getInstance(context);
             notifier.notify(notificationId, notificationApiKey,
-                    notificationTitle, notificationMessage, notificationUri);
+                    notificationTitle, notificationMessage, notificationUri,
+                    notificationExtras);
+        } else if (Constants.ACTION_SHOW_NOTIFICATIONS.equals(action)) {
+            List<NotificationIQ> notifications = readBatch(intent);
+            Log.d(LOGTAG, "batch size=" + notifications.size());
+
+            Notifier notifier = Notifier.getInstance(context);
+            notifier.notify(notifications);
         }
 
         //        } else if (Constants.ACTION_NOTIFICATION_CLICKED.equals(action)) {
@@ -113,4 +132,33 @@ public final class NotificationReceiver extends BroadcastReceiver {
 
     }
 
+    private List<NotificationIQ> readBatch(Intent intent) {
+        String[] ids = intent.getStringArrayExtra(Constants.NOTIFICATION_IDS);
+        String[] apiKeys = intent
+                .getStringArrayExtra(Constants.NOTIFICATION_API_KEYS);
+        String[] titles = intent
+                .getStringArrayExtra(Constants.NOTIFICATION_TITLES);
+        String[] messages = intent
+                .getStringArrayExtra(Constants.NOTIFICATION_MESSAGES);
+        String[] uris = intent.getStringArrayExtra(Constants.NOTIFICATION_URIS);
+        Bundle extras = intent.getBundleExtra(Constants.NOTIFICATION_EXTRAS);
+        int size = ids == null ? 0 : ids.length;
+        List<NotificationIQ> notifications = new ArrayList<NotificationIQ>(
+                size);
+        for (int i = 0; i < size; i++) {
+            NotificationIQ notification = new NotificationIQ();
+            notification.setId(ids[i]);
+            notification.setApiKey(apiKeys[i]);
+            notification.setTitle(titles[i]);
+            notification.setMessage(messages[i]);
+            notification.setUri(uris[i]);
+            if (extras != null) {
+                notification.setExtras(NotificationExtras.fromBundle(extras
+                        .getBundle(String.valueOf(i))));
+            }
+            notifications.add(notification);
+        }
+        return notifications;
+    }
+
 }
@@ -16,17 +16,19 @@
 package org.androidpn.client;
 
 import java.util.Random;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
+import android.os.Handler;
 import android.os.IBinder;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
@@ -46,22 +48,35 @@ public class NotificationService extends Service {
 
     public static final String SERVICE_NAME = "org.androidpn.client.NotificationService";
 
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+
     private TelephonyManager telephonyManager;
 
     //    private WifiManager wifiManager;
     //
     //    private ConnectivityManager connectivityManager;
 
-    //通知栏的广播接收者，用于广播来自服务器的推送信息
-    private BroadcastReceiver notificationReceiver;
+    //进程内的通知分发，通知栏和可选的广播都是它的订阅者
+    private NotificationBus notificationBus;
+
+    //在主线程显示通知
+    private Handler handler;
+
+    private Notifier notifier;
 
     //网络连接性的广播接收者，处理网络连接状态的改变
     private BroadcastReceiver connectivityReceiver;
     //监听手机连接状态的改变
     private PhoneStateListener phoneStateListener;
 
-    //对提交的Runnable任务进行执行操作的服务
-    private ExecutorService executorService;
+    //执行提交的Runnable任务，连接控制和通知分发各用一条通道
+    private LaneScheduler laneScheduler;
+
+    //定时任务的执行服务，供连接请求合并、重连等共享使用
+    private ScheduledExecutorService scheduledExecutorService;
+
+    //合并短时间内的连接/断开请求
+    private ConnectScheduler connectScheduler;
 
     //任务的提交者，用于提交一个个Runnable的任务
     private TaskSubmitter taskSubmitter;  
@@ -70,15 +85,17 @@ public class NotificationService extends Service {
 
     private XmppManager xmppManager;
 
-    private SharedPreferences sharedPrefs;
+    private PreferenceStore sharedPrefs;
     //设备ID
     private String deviceId;
 
     public NotificationService() {
-        notificationReceiver = new NotificationReceiver();
+        notificationBus = new NotificationBus();
         connectivityReceiver = new ConnectivityReceiver(this);
         phoneStateListener = new PhoneStateChangeListener(this);
-        executorService = Executors.newSingleThreadExecutor();
+        laneScheduler = new LaneScheduler();
+        scheduledExecutorService = Executors
+                .newSingleThreadScheduledExecutor();
         taskSubmitter = new TaskSubmitter(this);
         taskTracker = new TaskTracker(this);
     }
@@ -90,15 +107,14 @@ public class NotificationService extends Service {
         // wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
         // connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 
-        sharedPrefs = getSharedPreferences(Constants.SHARED_PREFERENCE_NAME,
-                Context.MODE_PRIVATE);
+        sharedPrefs = PreferenceStore.getInstance(this);
 
         // Get deviceId
         deviceId = telephonyManager.getDeviceId();
         // Log.d(LOGTAG, "deviceId=" + deviceId);
-        Editor editor = sharedPrefs.edit();
+        PreferenceStore.Editor editor = sharedPrefs.edit();
         editor.putString(Constants.DEVICE_ID, deviceId);
-        editor.commit();
+        editor.apply();
 
         // If running on an emulator
         if (deviceId == null || deviceId.trim().length() == 0
@@ -110,13 +126,32 @@ public class NotificationService extends Service {
                 deviceId = (new StringBuilder("EMU")).append(
                         (new Random(System.currentTimeMillis())).nextLong())
                         .toString();
+                //模拟器的设备ID只生成一次，同步写入
                 editor.putString(Constants.EMULATOR_DEVICE_ID, deviceId);
                 editor.commit();
             }
         }
         Log.d(LOGTAG, "deviceId=" + deviceId);
 
+        handler = new Handler();
+        notifier = Notifier.getInstance(this);
+        notificationBus.register(new NotificationCoalescer(notifier, handler));
+        if (sharedPrefs.getBoolean(Constants.NOTIFICATION_BROADCAST_ENABLED,
+                false)) {
+            notificationBus.register(new NotificationBroadcaster(this));
+        }
+
+        connectScheduler = new ConnectScheduler(this,
+                scheduledExecutorService, sharedPrefs.getLong(
+                        Constants.CONNECT_DEBOUNCE_MILLIS,
+                        ConnectScheduler.DEFAULT_DEBOUNCE_MILLIS));
+
         xmppManager = new XmppManager(this);
+        taskTracker.setIdleListener(new Runnable() {
+            public void run() {
+                onIdle();
+            }
+        });
 
         taskSubmitter.submit(new Runnable() {
             public void run() {
@@ -157,8 +192,20 @@ public class NotificationService extends Service {
         return new Intent(SERVICE_NAME);
     }
 
-    public ExecutorService getExecutorService() {
-        return executorService;
+    public LaneScheduler getLaneScheduler() {
+        return laneScheduler;
+    }
+
+    public ScheduledExecutorService getScheduledExecutorService() {
+        return scheduledExecutorService;
+    }
+
+    public NotificationBus getNotificationBus() {
+        return notificationBus;
+    }
+
+    public ConnectScheduler getConnectScheduler() {
+        return connectScheduler;
     }
 
     public TaskSubmitter getTaskSubmitter() {
@@ -169,11 +216,23 @@ public class NotificationService extends Service {
         return taskTracker;
     }
 
+    /**
+     * Returns a snapshot of the task gauge, the queue depths and the
+     * stanza counters.
+     */
+    public ServiceMetrics getMetrics() {
+        return new ServiceMetrics(taskTracker.getCount(), taskTracker
+                .getHighWater(), taskTracker.getSubmitted(), taskTracker
+                .getCompleted(), taskTracker.getIdleTransitions(),
+                laneScheduler, xmppManager.getDeliveryPipeline(),
+                xmppManager.getStreamManager());
+    }
+
     public XmppManager getXmppManager() {
         return xmppManager;
     }
 
-    public SharedPreferences getSharedPreferences() {
+    public PreferenceStore getSharedPreferences() {
         return sharedPrefs;
     }
 
@@ -183,41 +242,27 @@ public class NotificationService extends Service {
 
     /**
      * 连接到XMPP服务器
+     * 短时间内的多次请求会被合并为一次
      */
     public void connect() {
         Log.d(LOGTAG, "connect()...");
-        taskSubmitter.submit(new Runnable() {
-            public void run() {
-                NotificationService.this.getXmppManager().connect();
-            }
-        });
+        connectScheduler.requestConnect();
     }
 
     /**
-     * 断开与XMPP服务器的连接
+     * 网络可用时预先解析服务器地址并建立TCP连接
      */
-    public void disconnect() {
-        Log.d(LOGTAG, "disconnect()...");
-        taskSubmitter.submit(new Runnable() {
-            public void run() {
-                NotificationService.this.getXmppManager().disconnect();
-            }
-        });
+    public void prewarm() {
+        xmppManager.prewarm();
     }
 
     /**
-     * 注册通知的广播接收者
+     * 断开与XMPP服务器的连接
+     * 短时间内的多次请求会被合并为一次
      */
-    private void registerNotificationReceiver() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(Constants.ACTION_SHOW_NOTIFICATION);
-        filter.addAction(Constants.ACTION_NOTIFICATION_CLICKED);
-        filter.addAction(Constants.ACTION_NOTIFICATION_CLEARED);
-        registerReceiver(notificationReceiver, filter);
-    }
-
-    private void unregisterNotificationReceiver() {
-        unregisterReceiver(notificationReceiver);
+    public void disconnect() {
+        Log.d(LOGTAG, "disconnect()...");
+        connectScheduler.requestDisconnect();
     }
 
     /**
@@ -240,10 +285,26 @@ public class NotificationService extends Service {
         unregisterReceiver(connectivityReceiver);
     }
 
+    /**
+     * 没有任务在执行且队列为空时，把缓存的数据写入磁盘
+     * 在控制通道上调用，通知流水线也要空闲
+     * 日志文件保持打开，每次空闲都换新文件会让压缩删掉历史
+     */
+    private void onIdle() {
+        if (laneScheduler.getQueueDepth(LaneScheduler.Lane.CONTROL) > 0
+                || !xmppManager.getDeliveryPipeline().isIdle()) {
+            return;
+        }
+        Log.d(LOGTAG, "onIdle()... " + getMetrics());
+        xmppManager.getDeduplicator().flush();
+        xmppManager.getJournal().sync();
+    }
+
     private void start() {
         Log.d(LOGTAG, "start()...");
-        registerNotificationReceiver();  //注册通知的广播接收者
         registerConnectivityReceiver();	//注册网络连接状态的广播接收者
+        //分发上次进程退出前已记录但未分发的通知
+        xmppManager.getDeliveryPipeline().recover();
         // Intent intent = getIntent();
         // startService(intent);
         xmppManager.connect();  //连接到XMPP服务器
@@ -251,10 +312,33 @@ public class NotificationService extends Service {
 
     private void stop() {
         Log.d(LOGTAG, "stop()...");
-        unregisterNotificationReceiver();
         unregisterConnectivityReceiver();
         xmppManager.disconnect();  //断开与XMPP服务器的连接
-        executorService.shutdown();  //释放执行服务的资源
+        laneScheduler.shutdown();  //释放执行服务的资源
+        //通道上的任务（包括断开连接）执行完之后再关闭流水线，
+        //之前收到的通知都会走完流水线，不在主线程等待
+        Thread stopThread = new Thread(new Runnable() {
+            public void run() {
+                DeliveryPipeline pipeline = xmppManager.getDeliveryPipeline();
+                try {
+                    if (!laneScheduler.awaitTermination(STOP_TIMEOUT_MILLIS,
+                            TimeUnit.MILLISECONDS)) {
+                        Log.w(LOGTAG, "Lanes did not finish in time");
+                    }
+                    pipeline.shutdown();
+                    if (!pipeline.awaitTermination(STOP_TIMEOUT_MILLIS,
+                            TimeUnit.MILLISECONDS)) {
+                        Log.w(LOGTAG, "Pipeline did not drain in time");
+                    }
+                } catch (InterruptedException e) {
+                    pipeline.shutdown();
+                }
+                xmppManager.getDeduplicator().flush();
+                xmppManager.getJournal().close();
+                scheduledExecutorService.shutdownNow();
+            }
+        }, "Service Stop Thread");
+        stopThread.start();
     }
 
     /**
@@ -268,13 +352,23 @@ public class NotificationService extends Service {
             this.notificationService = notificationService;
         }
 
+        /**
+         * Submits the task to the control lane, with the normal priority.
+         */
         @SuppressWarnings("unchecked")
         public Future submit(Runnable task) {
+            return submit(task, LaneScheduler.Lane.CONTROL,
+                    LaneScheduler.Priority.NORMAL);
+        }
+
+        @SuppressWarnings("unchecked")
+        public Future submit(Runnable task, LaneScheduler.Lane lane,
+                LaneScheduler.Priority priority) {
             Future result = null;
-            if (!notificationService.getExecutorService().isTerminated()
-                    && !notificationService.getExecutorService().isShutdown()
+            if (!notificationService.getLaneScheduler().isShutdown()
                     && task != null) {
-                result = notificationService.getExecutorService().submit(task);
+                result = notificationService.getLaneScheduler().submit(lane,
+                        priority, task);
             }
             return result;
         }
@@ -282,33 +376,78 @@ public class NotificationService extends Service {
     }
 
     /**
-     * Class for monitoring the running task count.
+     * Class for monitoring the running task count. The count is a gauge of
+     * the tasks submitted and not yet finished, with its high-water mark.
+     * The idle listener is called each time it drops to zero.
      */
     public class TaskTracker {
 
         final NotificationService notificationService;
 
-        public int count;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicInteger highWater = new AtomicInteger();
+
+        private final AtomicLong submitted = new AtomicLong();
+
+        private final AtomicLong completed = new AtomicLong();
+
+        private final AtomicLong idleTransitions = new AtomicLong();
+
+        private volatile Runnable idleListener;
 
         public TaskTracker(NotificationService notificationService) {
             this.notificationService = notificationService;
-            this.count = 0;
         }
 
         public void increase() {
-            synchronized (notificationService.getTaskTracker()) {
-                notificationService.getTaskTracker().count++;
-                Log.d(LOGTAG, "Incremented task count to " + count);
+            submitted.incrementAndGet();
+            int count = inFlight.incrementAndGet();
+            int high = highWater.get();
+            while (count > high && !highWater.compareAndSet(high, count)) {
+                high = highWater.get();
             }
         }
 
         public void decrease() {
-            synchronized (notificationService.getTaskTracker()) {
-                notificationService.getTaskTracker().count--;
-                Log.d(LOGTAG, "Decremented task count to " + count);
+            completed.incrementAndGet();
+            if (inFlight.decrementAndGet() == 0) {
+                idleTransitions.incrementAndGet();
+                Runnable listener = idleListener;
+                if (listener != null) {
+                    listener.run();
+                }
             }
         }
 
+        /**
+         * Sets the listener called, on the thread of the last finished
+         * task, when no task is in flight any more.
+         */
+        public void setIdleListener(Runnable idleListener) {
+            this.idleListener = idleListener;
+        }
+
+        public int getCount() {
+            return inFlight.get();
+        }
+
+        public int getHighWater() {
+            return highWater.get();
+        }
+
+        public long getSubmitted() {
+            return submitted.get();
+        }
+
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        public long getIdleTransitions() {
+            return idleTransitions.get();
+        }
+
     }
 
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.util.Log;
+
+/**
+ * An immutable snapshot of the notification settings. There is one
+ * current snapshot per process; it is replaced when a setting changes in
+ * the shared preferences, e.g. from {@link NotificationSettingsActivity},
+ * so reading the settings costs a volatile read.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public final class NotificationSettings {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(NotificationSettings.class);
+
+    private static volatile NotificationSettings current;
+
+    // SharedPreferences只保存监听者的弱引用，这里保存强引用
+    private static OnSharedPreferenceChangeListener listener;
+
+    private final boolean notificationEnabled;
+
+    private final boolean soundEnabled;
+
+    private final boolean vibrateEnabled;
+
+    private final boolean toastEnabled;
+
+    private final int notificationIcon;
+
+    private NotificationSettings(SharedPreferences sharedPrefs) {
+        notificationEnabled = sharedPrefs.getBoolean(
+                Constants.SETTINGS_NOTIFICATION_ENABLED, true);
+        soundEnabled = sharedPrefs.getBoolean(Constants.SETTINGS_SOUND_ENABLED,
+                true);
+        vibrateEnabled = sharedPrefs.getBoolean(
+                Constants.SETTINGS_VIBRATE_ENABLED, true);
+        toastEnabled = sharedPrefs.getBoolean(Constants.SETTINGS_TOAST_ENABLED,
+                false);
+        notificationIcon = sharedPrefs.getInt(Constants.NOTIFICATION_ICON, 0);
+    }
+
+    /**
+     * Returns the current settings. The first call reads them and starts
+     * listening to their changes.
+     */
+    public static NotificationSettings get(Context context) {
+        NotificationSettings settings = current;
+        if (settings == null) {
+            synchronized (NotificationSettings.class) {
+                if (current == null) {
+                    final PreferenceStore sharedPrefs = PreferenceStore
+                            .getInstance(context);
+                    // 先注册监听，避免错过读取期间的修改
+                    listener = new OnSharedPreferenceChangeListener() {
+                        public void onSharedPreferenceChanged(
+                                SharedPreferences prefs, String key) {
+                            if (isSetting(key)) {
+                                current = new NotificationSettings(sharedPrefs);
+                                Log.d(LOGTAG, "Settings changed: " + key);
+                            }
+                        }
+                    };
+                    sharedPrefs.registerOnSharedPreferenceChangeListener(listener);
+                    current = new NotificationSettings(sharedPrefs);
+                }
+                settings = current;
+            }
+        }
+        return settings;
+    }
+
+    private static boolean isSetting(String key) {
+        return Constants.SETTINGS_NOTIFICATION_ENABLED.equals(key)
+                || Constants.SETTINGS_SOUND_ENABLED.equals(key)
+                || Constants.SETTINGS_VIBRATE_ENABLED.equals(key)
+                || Constants.SETTINGS_TOAST_ENABLED.equals(key)
+                || Constants.NOTIFICATION_ICON.equals(key);
+    }
+
+    public boolean isNotificationEnabled() {
+        return notificationEnabled;
+    }
+
+    public boolean isSoundEnabled() {
+        return soundEnabled;
+    }
+
+    public boolean isVibrateEnabled() {
+        return vibrateEnabled;
+    }
+
+    public boolean isToastEnabled() {
+        return toastEnabled;
+    }
+
+    public int getNotificationIcon() {
+        return notificationIcon;
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Maps the server ids of the notifications to stable NotificationManager
+ * ids, so that a notification sent again with the same id replaces the
+ * one in the status bar and can be cancelled later.
+ *
+ * There are {@link #MAX_SLOTS} slots. When they are all taken, the slot of
+ * the least recently shown id is reused, which also replaces its
+ * notification. The index is saved in the preferences, written behind by
+ * the {@link PreferenceStore}.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class NotificationSlots {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(NotificationSlots.class);
+
+    public static final int MAX_SLOTS = 64;
+
+    public static final int FIRST_SLOT = 1;
+
+    private final PreferenceStore sharedPrefs;
+
+    // Access ordered, the eldest entry is the least recently shown id
+    private final LinkedHashMap<String, Integer> slots = new LinkedHashMap<String, Integer>(
+            16, 0.75f, true);
+
+    private boolean loaded;
+
+    public NotificationSlots(PreferenceStore sharedPrefs) {
+        this.sharedPrefs = sharedPrefs;
+    }
+
+    /**
+     * Returns the slot of the notification id, taking a free or the least
+     * recently used slot for a new id.
+     */
+    public synchronized int getSlot(String notificationId) {
+        load();
+        Integer slot = slots.get(notificationId);
+        if (slot == null) {
+            if (slots.size() >= MAX_SLOTS) {
+                Iterator<Map.Entry<String, Integer>> it = slots.entrySet()
+                        .iterator();
+                Map.Entry<String, Integer> eldest = it.next();
+                slot = eldest.getValue();
+                it.remove();
+                Log.d(LOGTAG, "Reused slot " + slot + " of "
+                        + eldest.getKey());
+            } else {
+                slot = freeSlot();
+            }
+            slots.put(notificationId, slot);
+        }
+        save();
+        return slot;
+    }
+
+    /**
+     * Frees the slot of the notification id.
+     * @return the slot, or -1 if the id has none
+     */
+    public synchronized int release(String notificationId) {
+        load();
+        Integer slot = slots.remove(notificationId);
+        if (slot == null) {
+            return -1;
+        }
+        save();
+        return slot;
+    }
+
+    public synchronized int size() {
+        load();
+        return slots.size();
+    }
+
+    private int freeSlot() {
+        boolean[] used = new boolean[MAX_SLOTS];
+        for (Integer slot : slots.values()) {
+            used[slot - FIRST_SLOT] = true;
+        }
+        int i = 0;
+        while (used[i]) {
+            i++;
+        }
+        return FIRST_SLOT + i;
+    }
+
+    /**
+     * Saves the index as "slot:id" lines, least recently used first.
+     */
+    private void save() {
+        StringBuilder buf = new StringBuilder(slots.size() * 40);
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            buf.append(entry.getValue()).append(':').append(entry.getKey())
+                    .append('\n');
+        }
+        PreferenceStore.Editor editor = sharedPrefs.edit();
+        editor.putString(Constants.NOTIFICATION_SLOTS, buf.toString());
+        editor.apply();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        String saved = sharedPrefs.getString(Constants.NOTIFICATION_SLOTS, "");
+        boolean[] used = new boolean[MAX_SLOTS];
+        for (String line : saved.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            try {
+                int slot = Integer.parseInt(line.substring(0, colon));
+                if (slot < FIRST_SLOT || slot >= FIRST_SLOT + MAX_SLOTS
+                        || used[slot - FIRST_SLOT]) {
+                    continue;
+                }
+                used[slot - FIRST_SLOT] = true;
+                slots.put(line.substring(colon + 1), slot);
+            } catch (NumberFormatException e) {
+                Log.w(LOGTAG, "Invalid slot " + line);
+            }
+        }
+    }
+
+}
@@ -15,6 +15,11 @@
  */
 package org.androidpn.client;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import android.app.Notification;
@@ -22,7 +27,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -37,22 +42,45 @@ public class Notifier {
 
     private static final Random random = new Random(System.currentTimeMillis());
 
-    private Context context;
+    /** Minimum time between two sounds or vibrations. */
+    public static final long ALERT_INTERVAL_MILLIS = 3 * 1000L;
 
-    private SharedPreferences sharedPrefs;
+    private static Notifier instance;
 
-    private NotificationManager notificationManager;
+    private long lastAlertAt = -ALERT_INTERVAL_MILLIS;
 
-    public Notifier(Context context) {
+    private final Context context;
+
+    private final NotificationManager notificationManager;
+
+    private final NotificationSlots slots;
+
+    private Notifier(Context context) {
         this.context = context;
-        this.sharedPrefs = context.getSharedPreferences(
-                Constants.SHARED_PREFERENCE_NAME, Context.MODE_PRIVATE);
         this.notificationManager = (NotificationManager) context
                 .getSystemService(Context.NOTIFICATION_SERVICE);
+        this.slots = new NotificationSlots(PreferenceStore
+                .getInstance(context));
+    }
+
+    /**
+     * Returns the notifier of the process, created on first use.
+     */
+    public static synchronized Notifier getInstance(Context context) {
+        if (instance == null) {
+            instance = new Notifier(context.getApplicationContext());
+        }
+        return instance;
     }
 
     public void notify(String notificationId, String apiKey, String title,
             String message, String uri) {
+        notify(notificationId, apiKey, title, message, uri,
+                NotificationExtras.EMPTY);
+    }
+
+    public void notify(String notificationId, String apiKey, String title,
+            String message, String uri, NotificationExtras extras) {
         Log.d(LOGTAG, "notify()...");
 
         Log.d(LOGTAG, "notificationId=" + notificationId);
@@ -61,116 +89,212 @@ public class Notifier {
         Log.d(LOGTAG, "notificationMessage=" + message);
         Log.d(LOGTAG, "notificationUri=" + uri);
 
-        if (isNotificationEnabled()) {
-            // Show the toast
-            if (isNotificationToastEnabled()) {
-                Toast.makeText(context, message, Toast.LENGTH_LONG).show();
-            }
+        NotificationIQ notification = new NotificationIQ();
+        notification.setId(notificationId);
+        notification.setApiKey(apiKey);
+        notification.setTitle(title);
+        notification.setMessage(message);
+        notification.setUri(uri);
+        notification.setExtras(extras);
+        notify(Collections.singletonList(notification));
+    }
 
-            // Notification
-            Notification notification = new Notification();
-            notification.icon = getNotificationIcon();
-            notification.defaults = Notification.DEFAULT_LIGHTS;
-            if (isNotificationSoundEnabled()) {
-                notification.defaults |= Notification.DEFAULT_SOUND;
+    /**
+     * Shows a batch of notifications with one status bar notification per
+     * api key: an api key with a single notification in the batch gets an
+     * ordinary notification, and one with more gets its summary
+     * notification, which opens the latest of them. Only the last
+     * notification shown may show the toast, play the sound and vibrate.
+     */
+    public void notify(List<NotificationIQ> notifications) {
+        Log.d(LOGTAG, "notify()... batch of " + notifications.size());
+        if (notifications.isEmpty()) {
+            return;
+        }
+        NotificationSettings settings = NotificationSettings.get(context);
+        if (!settings.isNotificationEnabled()) {
+            Log.w(LOGTAG, "Notificaitons disabled.");
+            return;
+        }
+        //按apiKey分组，保持到达顺序
+        Map<String, List<NotificationIQ>> groups = new LinkedHashMap<String, List<NotificationIQ>>();
+        for (NotificationIQ notification : notifications) {
+            String apiKey = notification.getApiKey() == null ? ""
+                    : notification.getApiKey();
+            List<NotificationIQ> group = groups.get(apiKey);
+            if (group == null) {
+                group = new ArrayList<NotificationIQ>();
+                groups.put(apiKey, group);
             }
-            if (isNotificationVibrateEnabled()) {
-                notification.defaults |= Notification.DEFAULT_VIBRATE;
+            group.add(notification);
+        }
+        int remaining = groups.size();
+        for (Map.Entry<String, List<NotificationIQ>> entry : groups
+                .entrySet()) {
+            List<NotificationIQ> group = entry.getValue();
+            NotificationIQ latest = group.get(group.size() - 1);
+            boolean alert = --remaining == 0 && allowAlert();
+            if (group.size() == 1) {
+                show(settings, getNotifyId(latest), latest, latest
+                        .getMessage(), 0, alert);
+            } else {
+                show(settings, getSummaryId(entry.getKey()), latest, group
+                        .size()
+                        + " new notifications", group.size(), alert);
             }
-            notification.flags |= Notification.FLAG_AUTO_CANCEL;
-            notification.when = System.currentTimeMillis();
-            notification.tickerText = message;
-
-            //            Intent intent;
-            //            if (uri != null
-            //                    && uri.length() > 0
-            //                    && (uri.startsWith("http:") || uri.startsWith("https:")
-            //                            || uri.startsWith("tel:") || uri.startsWith("geo:"))) {
-            //                intent = new Intent(Intent.ACTION_VIEW, Uri.parse(uri));
-            //            } else {
-            //                String callbackActivityPackageName = sharedPrefs.getString(
-            //                        Constants.CALLBACK_ACTIVITY_PACKAGE_NAME, "");
-            //                String callbackActivityClassName = sharedPrefs.getString(
-            //                        Constants.CALLBACK_ACTIVITY_CLASS_NAME, "");
-            //                intent = new Intent().setClassName(callbackActivityPackageName,
-            //                        callbackActivityClassName);
-            //                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            //                intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-            //            }
-
-            Intent intent = new Intent(context,
-                    NotificationDetailsActivity.class);
-            intent.putExtra(Constants.NOTIFICATION_ID, notificationId);
-            intent.putExtra(Constants.NOTIFICATION_API_KEY, apiKey);
-            intent.putExtra(Constants.NOTIFICATION_TITLE, title);
-            intent.putExtra(Constants.NOTIFICATION_MESSAGE, message);
-            intent.putExtra(Constants.NOTIFICATION_URI, uri);
-            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            intent.setFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
-            intent.setFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
-            intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-            intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-
-            PendingIntent contentIntent = PendingIntent.getActivity(context, 0,
-                    intent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-            notification.setLatestEventInfo(context, title, message,
-                    contentIntent);
-            notificationManager.notify(random.nextInt(), notification);
-
-            //            Intent clickIntent = new Intent(
-            //                    Constants.ACTION_NOTIFICATION_CLICKED);
-            //            clickIntent.putExtra(Constants.NOTIFICATION_ID, notificationId);
-            //            clickIntent.putExtra(Constants.NOTIFICATION_API_KEY, apiKey);
-            //            clickIntent.putExtra(Constants.NOTIFICATION_TITLE, title);
-            //            clickIntent.putExtra(Constants.NOTIFICATION_MESSAGE, message);
-            //            clickIntent.putExtra(Constants.NOTIFICATION_URI, uri);
-            //            //        positiveIntent.setData(Uri.parse((new StringBuilder(
-            //            //                "notif://notification.adroidpn.org/")).append(apiKey).append(
-            //            //                "/").append(System.currentTimeMillis()).toString()));
-            //            PendingIntent clickPendingIntent = PendingIntent.getBroadcast(
-            //                    context, 0, clickIntent, 0);
-            //
-            //            notification.setLatestEventInfo(context, title, message,
-            //                    clickPendingIntent);
-            //
-            //            Intent clearIntent = new Intent(
-            //                    Constants.ACTION_NOTIFICATION_CLEARED);
-            //            clearIntent.putExtra(Constants.NOTIFICATION_ID, notificationId);
-            //            clearIntent.putExtra(Constants.NOTIFICATION_API_KEY, apiKey);
-            //            //        negativeIntent.setData(Uri.parse((new StringBuilder(
-            //            //                "notif://notification.adroidpn.org/")).append(apiKey).append(
-            //            //                "/").append(System.currentTimeMillis()).toString()));
-            //            PendingIntent clearPendingIntent = PendingIntent.getBroadcast(
-            //                    context, 0, clearIntent, 0);
-            //            notification.deleteIntent = clearPendingIntent;
-            //
-            //            notificationManager.notify(random.nextInt(), notification);
-
-        } else {
-            Log.w(LOGTAG, "Notificaitons disabled.");
         }
     }
 
-    private int getNotificationIcon() {
-        return sharedPrefs.getInt(Constants.NOTIFICATION_ICON, 0);
+    /**
+     * Removes the notification with the server id from the status bar.
+     */
+    public void cancel(String notificationId) {
+        int slot = slots.release(notificationId);
+        if (slot >= 0) {
+            notificationManager.cancel(slot);
+        }
+    }
+
+    /**
+     * Shows or updates the summary notification of the api key, in place
+     * of its individual notifications.
+     * @param latest the latest notification of the api key, opened when
+     *            the summary is clicked
+     * @param count the number of notifications summarized
+     */
+    public void notifySummary(String apiKey, NotificationIQ latest, int count) {
+        Log.d(LOGTAG, "notifySummary()... " + apiKey + " count=" + count);
+        NotificationSettings settings = NotificationSettings.get(context);
+        if (!settings.isNotificationEnabled()) {
+            Log.w(LOGTAG, "Notificaitons disabled.");
+            return;
+        }
+        show(settings, getSummaryId(apiKey), latest, count
+                + " new notifications", count, allowAlert());
     }
 
-    private boolean isNotificationEnabled() {
-        return sharedPrefs.getBoolean(Constants.SETTINGS_NOTIFICATION_ENABLED,
-                true);
+    private static int getSummaryId(String apiKey) {
+        return ("summary:" + apiKey).hashCode();
     }
 
-    private boolean isNotificationSoundEnabled() {
-        return sharedPrefs.getBoolean(Constants.SETTINGS_SOUND_ENABLED, true);
+    /**
+     * Returns whether the next notification may alert the user, at most
+     * once per {@link #ALERT_INTERVAL_MILLIS}.
+     */
+    private synchronized boolean allowAlert() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastAlertAt < ALERT_INTERVAL_MILLIS) {
+            return false;
+        }
+        lastAlertAt = now;
+        return true;
     }
 
-    private boolean isNotificationVibrateEnabled() {
-        return sharedPrefs.getBoolean(Constants.SETTINGS_VIBRATE_ENABLED, true);
+    /**
+     * 同一个服务器ID的通知使用同一个ID，更新时替换原来的通知
+     */
+    private int getNotifyId(NotificationIQ notification) {
+        String id = notification.getId();
+        if (id == null || id.length() == 0) {
+            return random.nextInt();
+        }
+        return slots.getSlot(id);
     }
 
-    private boolean isNotificationToastEnabled() {
-        return sharedPrefs.getBoolean(Constants.SETTINGS_TOAST_ENABLED, false);
+    private void show(NotificationSettings settings, int notifyId,
+            NotificationIQ iq, String text, int number, boolean alert) {
+        // Show the toast
+        if (alert && settings.isToastEnabled()) {
+            Toast.makeText(context, iq.getMessage(), Toast.LENGTH_LONG)
+                    .show();
+        }
+
+        // Notification
+        Notification notification = new Notification();
+        notification.icon = settings.getNotificationIcon();
+        notification.defaults = Notification.DEFAULT_LIGHTS;
+        if (alert && settings.isSoundEnabled()) {
+            notification.defaults |= Notification.DEFAULT_SOUND;
+        }
+        if (alert && settings.isVibrateEnabled()) {
+            notification.defaults |= Notification.DEFAULT_VIBRATE;
+        }
+        notification.flags |= Notification.FLAG_AUTO_CANCEL;
+        notification.when = System.currentTimeMillis();
+        notification.tickerText = iq.getMessage();
+        notification.number = number;
+
+        //            Intent intent;
+        //            if (uri != null
+        //                    && uri.length() > 0
+        //                    && (uri.startsWith("http:") || uri.startsWith("https:")
+        //                            || uri.startsWith("tel:") || uri.startsWith("geo:"))) {
+        //                intent = new Intent(Intent.ACTION_VIEW, Uri.parse(uri));
+        //            } else {
+        //                String callbackActivityPackageName = sharedPrefs.getString(
+        //                        Constants.CALLBACK_ACTIVITY_PACKAGE_NAME, "");
+        //                String callbackActivityClassName = sharedPrefs.getString(
+        //                        Constants.CALLBACK_ACTIVITY_CLASS_NAME, "");
+        //                intent = new Intent().setClassName(callbackActivityPackageName,
+        //                        callbackActivityClassName);
+        //                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        //                intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        //            }
+
+        Intent intent = new Intent(context,
+                NotificationDetailsActivity.class);
+        intent.putExtra(Constants.NOTIFICATION_ID, iq.getId());
+        intent.putExtra(Constants.NOTIFICATION_API_KEY, iq.getApiKey());
+        intent.putExtra(Constants.NOTIFICATION_TITLE, iq.getTitle());
+        intent.putExtra(Constants.NOTIFICATION_MESSAGE, iq.getMessage());
+        intent.putExtra(Constants.NOTIFICATION_URI, iq.getUri());
+        if (!iq.getExtras().isEmpty()) {
+            intent.putExtra(Constants.NOTIFICATION_EXTRAS, iq.getExtras()
+                    .toBundle());
+        }
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.setFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NO_HISTORY);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+
+        // 每个通知使用不同的requestCode，否则同一批的通知会共用一个PendingIntent
+        PendingIntent contentIntent = PendingIntent.getActivity(context,
+                notifyId, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        notification.setLatestEventInfo(context, iq.getTitle(), text,
+                contentIntent);
+        notificationManager.notify(notifyId, notification);
+
+        //            Intent clickIntent = new Intent(
+        //                    Constants.ACTION_NOTIFICATION_CLICKED);
+        //            clickIntent.putExtra(Constants.NOTIFICATION_ID, notificationId);
+        //            clickIntent.putExtra(Constants.NOTIFICATION_API_KEY, apiKey);
+        //            clickIntent.putExtra(Constants.NOTIFICATION_TITLE, title);
+        //            clickIntent.putExtra(Constants.NOTIFICATION_MESSAGE, message);
+        //            clickIntent.putExtra(Constants.NOTIFICATION_URI, uri);
+        //            //        positiveIntent.setData(Uri.parse((new StringBuilder(
+        //            //                "notif://notification.adroidpn.org/")).append(apiKey).append(
+        //            //                "/").append(System.currentTimeMillis()).toString()));
+        //            PendingIntent clickPendingIntent = PendingIntent.getBroadcast(
+        //                    context, 0, clickIntent, 0);
+        //
+        //            notification.setLatestEventInfo(context, title, message,
+        //                    clickPendingIntent);
+        //
+        //            Intent clearIntent = new Intent(
+        //                    Constants.ACTION_NOTIFICATION_CLEARED);
+        //            clearIntent.putExtra(Constants.NOTIFICATION_ID, notificationId);
+        //            clearIntent.putExtra(Constants.NOTIFICATION_API_KEY, apiKey);
+        //            //        negativeIntent.setData(Uri.parse((new StringBuilder(
+        //            //                "notif://notification.adroidpn.org/")).append(apiKey).append(
+        //            //                "/").append(System.currentTimeMillis()).toString()));
+        //            PendingIntent clearPendingIntent = PendingIntent.getBroadcast(
+        //                    context, 0, clearIntent, 0);
+        //            notification.deleteIntent = clearPendingIntent;
+        //
+        //            notificationManager.notify(random.nextInt(), notification);
+
     }
 
 }
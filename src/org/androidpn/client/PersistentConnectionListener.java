@@ -47,7 +47,8 @@ public class PersistentConnectionListener implements ConnectionListener {
                 && xmppManager.getConnection().isConnected()) {
             xmppManager.getConnection().disconnect();
         }
-        xmppManager.startReconnectionThread();
+        xmppManager.connectionLost();
+        xmppManager.scheduleReconnection();
     }
 
     @Override
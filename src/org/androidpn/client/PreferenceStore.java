@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A write-behind store in front of the client's shared preferences.
+ *
+ * {@link Editor#apply()} makes the changes visible to the readers of the
+ * store at once and writes them to the disk on a background thread, at
+ * most {@link #FLUSH_DELAY_MILLIS} later, together with the other changes
+ * applied in the meantime. {@link Editor#commit()} writes the pending
+ * changes and its own before returning; it is meant for the state that
+ * must survive a crash, like the account credentials.
+ *
+ * The store also records how long the main thread spent writing
+ * preferences, and how long the deferred writes from the main thread took
+ * on the background thread, i.e. what they would have cost it.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class PreferenceStore implements SharedPreferences {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(PreferenceStore.class);
+
+    public static final long FLUSH_DELAY_MILLIS = 1000L;
+
+    // 表示被删除的键
+    private static final Object REMOVED = new Object();
+
+    private static PreferenceStore instance;
+
+    private final SharedPreferences sharedPrefs;
+
+    private final ScheduledExecutorService writer;
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    // 尚未写入的修改，以及正在写入的修改
+    private Map<String, Object> pending = new HashMap<String, Object>();
+
+    private Map<String, Object> writing = new HashMap<String, Object>();
+
+    private boolean pendingClear;
+
+    private boolean writingClear;
+
+    private boolean flushScheduled;
+
+    // 待写入的修改中是否有来自主线程的
+    private boolean pendingFromMainThread;
+
+    private final Object flushLock = new Object();
+
+    private long mainThreadBlockedMillis;
+
+    private long deferredMainThreadMillis;
+
+    private int flushes;
+
+    private PreferenceStore(SharedPreferences sharedPrefs) {
+        this.sharedPrefs = sharedPrefs;
+        this.writer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Preference Writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the store of the client preferences, created on first use.
+     */
+    public static synchronized PreferenceStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new PreferenceStore(context.getApplicationContext()
+                    .getSharedPreferences(Constants.SHARED_PREFERENCE_NAME,
+                            Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public String getString(String key, String defValue) {
+        Object value = lookup(key);
+        if (value == null) {
+            return sharedPrefs.getString(key, defValue);
+        }
+        return value == REMOVED ? defValue : (String) value;
+    }
+
+    public int getInt(String key, int defValue) {
+        Object value = lookup(key);
+        if (value == null) {
+            return sharedPrefs.getInt(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Integer) value;
+    }
+
+    public long getLong(String key, long defValue) {
+        Object value = lookup(key);
+        if (value == null) {
+            return sharedPrefs.getLong(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Long) value;
+    }
+
+    public float getFloat(String key, float defValue) {
+        Object value = lookup(key);
+        if (value == null) {
+            return sharedPrefs.getFloat(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Float) value;
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = lookup(key);
+        if (value == null) {
+            return sharedPrefs.getBoolean(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Boolean) value;
+    }
+
+    public boolean contains(String key) {
+        Object value = lookup(key);
+        if (value == null) {
+            return sharedPrefs.contains(key);
+        }
+        return value != REMOVED;
+    }
+
+    public synchronized Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<String, Object>();
+        if (!pendingClear && !writingClear) {
+            all.putAll(sharedPrefs.getAll());
+        }
+        merge(all, writing);
+        merge(all, pending);
+        return all;
+    }
+
+    /**
+     * The listeners are called when the changes reach the shared
+     * preferences, not when they are applied.
+     */
+    public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        sharedPrefs.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        sharedPrefs.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Writes the pending changes to the disk now.
+     * @return false if the write failed
+     */
+    public boolean flush() {
+        boolean mainThread = isMainThread();
+        long start = SystemClock.elapsedRealtime();
+        boolean result = true;
+        boolean fromMainThread;
+        boolean deferred;
+        synchronized (flushLock) {
+            SharedPreferences.Editor editor;
+            synchronized (this) {
+                flushScheduled = false;
+                fromMainThread = pendingFromMainThread;
+                deferred = fromMainThread && !mainThread;
+                pendingFromMainThread = false;
+                if (pending.isEmpty() && !pendingClear) {
+                    return true;
+                }
+                writing = pending;
+                writingClear = pendingClear;
+                pending = new HashMap<String, Object>();
+                pendingClear = false;
+                editor = sharedPrefs.edit();
+                if (writingClear) {
+                    editor.clear();
+                }
+                for (Map.Entry<String, Object> entry : writing.entrySet()) {
+                    put(editor, entry.getKey(), entry.getValue());
+                }
+            }
+            result = editor.commit();
+            synchronized (this) {
+                if (!result) {
+                    // 写入失败，保留修改并安排下一次写入
+                    writing.putAll(pending);
+                    pending = writing;
+                    pendingClear |= writingClear;
+                    pendingFromMainThread |= fromMainThread;
+                    scheduleFlush();
+                }
+                writing = new HashMap<String, Object>();
+                writingClear = false;
+                flushes++;
+            }
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            if (mainThread) {
+                mainThreadBlockedMillis += elapsed;
+            } else if (deferred) {
+                deferredMainThreadMillis += elapsed;
+            }
+        }
+        if (!result) {
+            Log.w(LOGTAG, "Could not write the preferences");
+        } else {
+            Log.d(LOGTAG, "Wrote preferences in " + elapsed + "ms, main thread "
+                    + (mainThread ? "blocked" : "spared"));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time the main thread spent writing preferences.
+     */
+    public synchronized long getMainThreadBlockedMillis() {
+        return mainThreadBlockedMillis;
+    }
+
+    /**
+     * Returns the time spent on the writer thread for the changes applied
+     * from the main thread, which used to block it.
+     */
+    public synchronized long getDeferredMainThreadMillis() {
+        return deferredMainThreadMillis;
+    }
+
+    public synchronized int getFlushCount() {
+        return flushes;
+    }
+
+    private synchronized Object lookup(String key) {
+        Object value = pending.get(key);
+        if (value != null) {
+            return value;
+        }
+        if (pendingClear) {
+            return REMOVED;
+        }
+        value = writing.get(key);
+        if (value != null) {
+            return value;
+        }
+        return writingClear ? REMOVED : null;
+    }
+
+    private synchronized void apply(Map<String, Object> changes, boolean clear) {
+        if (clear) {
+            pending.clear();
+            pendingClear = true;
+        }
+        pending.putAll(changes);
+        if (isMainThread()) {
+            pendingFromMainThread = true;
+        }
+        scheduleFlush();
+    }
+
+    private synchronized void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(flushTask, FLUSH_DELAY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void merge(Map<String, Object> all,
+            Map<String, Object> changes) {
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                all.remove(entry.getKey());
+            } else {
+                all.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void put(SharedPreferences.Editor editor, String key,
+            Object value) {
+        if (value == REMOVED) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        }
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Collects the changes until they are applied or committed.
+     */
+    public class Editor implements SharedPreferences.Editor {
+
+        private final Map<String, Object> changes = new HashMap<String, Object>();
+
+        private boolean clear;
+
+        public Editor putString(String key, String value) {
+            // putString(key, null) 等同于删除
+            changes.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        public Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        /**
+         * Makes the changes visible and writes them to the disk within
+         * {@link PreferenceStore#FLUSH_DELAY_MILLIS}.
+         */
+        public void apply() {
+            PreferenceStore.this.apply(changes, clear);
+            changes.clear();
+            clear = false;
+        }
+
+        /**
+         * Makes the changes visible and writes them, with the other
+         * pending changes, to the disk before returning.
+         */
+        public boolean commit() {
+            apply();
+            return flush();
+        }
+    }
+
+}
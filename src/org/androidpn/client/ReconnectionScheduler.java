@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.androidpn.client.ConnectionStateMachine.State;
+
+import android.util.Log;
+
+/**
+ * A class for scheduling the reconnection to the server.
+ * Uses exponential backoff with full jitter, and resets the backoff once
+ * a connection has stayed up for a while.
+ *重新连接的调度器
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class ReconnectionScheduler {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(ReconnectionScheduler.class);
+
+    private static final long BASE_DELAY_MILLIS = 5 * 1000L;
+
+    private static final long MAX_DELAY_MILLIS = 10 * 60 * 1000L;
+
+    private static final long STABLE_CONNECTION_MILLIS = 60 * 1000L;
+
+    private static final int MAX_SHIFT = 16;
+
+    private final XmppManager xmppManager;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Random random = new Random();
+
+    private int attempts;
+
+    private Future<?> pendingReconnect;
+
+    private Future<?> pendingStableCheck;
+
+    private final Runnable reconnectTask = new Runnable() {
+        public void run() {
+            synchronized (ReconnectionScheduler.this) {
+                pendingReconnect = null;
+            }
+            xmppManager.connect();
+        }
+    };
+
+    private final Runnable stableCheckTask = new Runnable() {
+        public void run() {
+            synchronized (ReconnectionScheduler.this) {
+                pendingStableCheck = null;
+                if (xmppManager.getStateMachine().getState() == State.READY) {
+                    Log.d(LOGTAG, "Connection stable, backoff reset");
+                    attempts = 0;
+                }
+            }
+        }
+    };
+
+    ReconnectionScheduler(XmppManager xmppManager,
+            ScheduledExecutorService scheduler) {
+        this.xmppManager = xmppManager;
+        this.scheduler = scheduler;
+        this.attempts = 0;
+    }
+
+    /**
+     * Schedules the next reconnection attempt, unless one is already pending.
+     */
+    public synchronized void schedule() {
+        cancelStableCheck();
+        if (pendingReconnect != null) {
+            return;
+        }
+        long delay = nextDelay(attempts++);
+        Log.d(LOGTAG, "Trying to reconnect in " + delay + " ms (attempt "
+                + attempts + ")");
+        xmppManager.getConnectionListener().reconnectingIn(
+                (int) (delay / 1000L));
+        pendingReconnect = submit(reconnectTask, delay);
+    }
+
+    /**
+     * Skips the pending backoff and reconnects right away, for example when
+     * the network connectivity has come back.
+     */
+    public synchronized void reconnectNow() {
+        if (pendingReconnect != null) {
+            pendingReconnect.cancel(false);
+        }
+        pendingReconnect = submit(reconnectTask, 0L);
+    }
+
+    /**
+     * Called when the connection is ready. The backoff is reset if the
+     * connection stays up long enough.
+     */
+    public synchronized void connectionEstablished() {
+        cancelStableCheck();
+        pendingStableCheck = submit(stableCheckTask,
+                STABLE_CONNECTION_MILLIS);
+    }
+
+    /**
+     * Cancels any pending reconnection and resets the backoff.
+     */
+    public synchronized void cancel() {
+        if (pendingReconnect != null) {
+            pendingReconnect.cancel(false);
+            pendingReconnect = null;
+        }
+        cancelStableCheck();
+        attempts = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    private void cancelStableCheck() {
+        if (pendingStableCheck != null) {
+            pendingStableCheck.cancel(false);
+            pendingStableCheck = null;
+        }
+    }
+
+    /**
+     * Full jitter: a random delay between zero and the exponential ceiling.
+     */
+    private long nextDelay(int attempt) {
+        long ceiling = BASE_DELAY_MILLIS << Math.min(attempt, MAX_SHIFT);
+        ceiling = Math.min(ceiling, MAX_DELAY_MILLIS);
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    private Future<?> submit(Runnable task, long delay) {
+        try {
+            return scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOGTAG, "Scheduler is shut down");
+            return null;
+        }
+    }
+
+}
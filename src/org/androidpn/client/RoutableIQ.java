@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import org.jivesoftware.smack.packet.IQ;
+
+/** 
+ * An IQ packet that knows the name and namespace of its child element,
+ * so that it can be routed without serializing it.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public abstract class RoutableIQ extends IQ {
+
+    public abstract String getElementName();
+
+    public abstract String getNamespace();
+
+}
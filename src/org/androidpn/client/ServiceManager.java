@@ -15,13 +15,14 @@
  */
 package org.androidpn.client;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.util.Log;
 
 /** 
@@ -36,7 +37,7 @@ public final class ServiceManager {
 
     private Context context;
 
-    private SharedPreferences sharedPrefs;
+    private PreferenceStore sharedPrefs;
     //加载raw文件夹下的属性文件
     private Properties props;
 
@@ -48,15 +49,45 @@ public final class ServiceManager {
 
     private String xmppPort;
 
+    private String xmppEndpoints;
+
+    private String xmppPrewarm;
+
+    private String xmppCompression;
+
+    private String tlsSessionCache;
+
+    private String connectDebounceMillis;
+
+    private String notificationBroadcast;
+
     private String callbackActivityPackageName;
 
     private String callbackActivityClassName;
 
+    //配置是否已经加载并写入
+    private final CountDownLatch configLoaded = new CountDownLatch(1);
+
+    private boolean configApplied;
+
+    private int pendingIconId = -1;
+
     /**
      * ServiceManager的构造函数
      * @param context
      */
     public ServiceManager(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * ServiceManager的构造函数
+     * @param context
+     * @param async true to load the configuration on a background thread
+     *            and return immediately; the service is started once it
+     *            is loaded
+     */
+    public ServiceManager(Context context, boolean async) {
         this.context = context;
 
         if (context instanceof Activity) {
@@ -66,6 +97,30 @@ public final class ServiceManager {
             callbackActivityClassName = callbackActivity.getClass().getName();
         }
 
+        Runnable loadTask = new Runnable() {
+            public void run() {
+                try {
+                    loadConfig();
+                } catch (RuntimeException e) {
+                    Log.e(LOGTAG, "Could not load the configuration.", e);
+                } finally {
+                    configApplied();
+                    configLoaded.countDown();
+                }
+            }
+        };
+        if (async) {
+            new Thread(loadTask, "Config Loader Thread").start();
+        } else {
+            loadTask.run();
+        }
+    }
+
+    /**
+     * 从属性文件中读取配置，与上次写入的配置不同时才写入共享引用
+     */
+    private void loadConfig() {
+
         //        apiKey = getMetaDataValue("ANDROIDPN_API_KEY");
         //        Log.i(LOGTAG, "apiKey=" + apiKey);
         //        //        if (apiKey == null) {
@@ -78,30 +133,91 @@ public final class ServiceManager {
         
         
         
+        sharedPrefs = PreferenceStore.getInstance(context);
         props = loadProperties();
         apiKey = props.getProperty("apiKey", "");
         xmppHost = props.getProperty("xmppHost", "127.0.0.1");
         xmppPort = props.getProperty("xmppPort", "5222");
+        // 逗号分隔的host:port列表，用于集群的故障转移
+        xmppEndpoints = props.getProperty("xmppEndpoints", "");
+        xmppPrewarm = props.getProperty("xmppPrewarm", "true");
+        // 默认不压缩，TLS之上压缩可能泄露加密的内容
+        xmppCompression = props.getProperty("xmppCompression",
+                XmppManager.COMPRESSION_NONE);
+        // 替换整个进程的SSLContext.TLS，默认关闭
+        tlsSessionCache = props.getProperty("tlsSessionCache", "false");
+        connectDebounceMillis = props.getProperty("connectDebounceMillis",
+                String.valueOf(ConnectScheduler.DEFAULT_DEBOUNCE_MILLIS));
+        // 是否另外以广播的形式发送通知，供其他接收者使用
+        notificationBroadcast = props.getProperty("notificationBroadcast",
+                "false");
         Log.i(LOGTAG, "apiKey=" + apiKey);
         Log.i(LOGTAG, "xmppHost=" + xmppHost);
         Log.i(LOGTAG, "xmppPort=" + xmppPort);
         
         
-        sharedPrefs = context.getSharedPreferences(
-                Constants.SHARED_PREFERENCE_NAME, Context.MODE_PRIVATE);
-        Editor editor = sharedPrefs.edit();
+        long configHash = hash(version, apiKey, xmppHost, xmppPort,
+                xmppEndpoints, xmppPrewarm, xmppCompression,
+                tlsSessionCache, connectDebounceMillis,
+                notificationBroadcast, callbackActivityPackageName,
+                callbackActivityClassName);
+        if (sharedPrefs.getLong(Constants.CONFIG_HASH, -1L) == configHash) {
+            Log.d(LOGTAG, "Configuration unchanged");
+            return;
+        }
+
+        //配置在后台线程写入，不阻塞主线程
+        PreferenceStore.Editor editor = sharedPrefs.edit();
         editor.putString(Constants.API_KEY, apiKey);
         editor.putString(Constants.VERSION, version);
         editor.putString(Constants.XMPP_HOST, xmppHost);
         editor.putInt(Constants.XMPP_PORT, Integer.parseInt(xmppPort));
+        editor.putString(Constants.XMPP_ENDPOINTS, xmppEndpoints);
+        editor.putBoolean(Constants.XMPP_PREWARM, Boolean
+                .parseBoolean(xmppPrewarm));
+        editor.putString(Constants.XMPP_COMPRESSION, xmppCompression);
+        editor.putBoolean(Constants.TLS_SESSION_CACHE, Boolean
+                .parseBoolean(tlsSessionCache));
+        editor.putLong(Constants.CONNECT_DEBOUNCE_MILLIS, Long
+                .parseLong(connectDebounceMillis));
+        editor.putBoolean(Constants.NOTIFICATION_BROADCAST_ENABLED, Boolean
+                .parseBoolean(notificationBroadcast));
         editor.putString(Constants.CALLBACK_ACTIVITY_PACKAGE_NAME,
                 callbackActivityPackageName);
         editor.putString(Constants.CALLBACK_ACTIVITY_CLASS_NAME,
                 callbackActivityClassName);
-        editor.commit();
+        editor.putLong(Constants.CONFIG_HASH, configHash);
+        editor.apply();
         // Log.i(LOGTAG, "sharedPrefs=" + sharedPrefs.toString());
     }
 
+    /**
+     * 写入在配置加载完成之前设置的通知图标
+     */
+    private synchronized void configApplied() {
+        configApplied = true;
+        if (pendingIconId >= 0) {
+            setNotificationIcon(pendingIconId);
+            pendingIconId = -1;
+        }
+    }
+
+    private static long hash(String... values) {
+        CRC32 crc = new CRC32();
+        for (String value : values) {
+            if (value != null) {
+                try {
+                    crc.update(value.getBytes("UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    crc.update(value.getBytes());
+                }
+            }
+            // 分隔符，区分null和空字符串
+            crc.update(value == null ? 0 : 1);
+        }
+        return crc.getValue();
+    }
+
     /**
      * 启动NotificationService
      */
@@ -109,6 +225,13 @@ public final class ServiceManager {
         Thread serviceThread = new Thread(new Runnable() {
             @Override
             public void run() {
+                //等待配置写入，服务启动时会读取配置
+                try {
+                    configLoaded.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
                 Intent intent = NotificationService.getIntent();
                 context.startService(intent);
             }
@@ -201,10 +324,14 @@ public final class ServiceManager {
      * 将通知的图标资源ID存入共享引用
      * @param iconId
      */
-    public void setNotificationIcon(int iconId) {
-        Editor editor = sharedPrefs.edit();
+    public synchronized void setNotificationIcon(int iconId) {
+        if (!configApplied) {
+            pendingIconId = iconId;
+            return;
+        }
+        PreferenceStore.Editor editor = sharedPrefs.edit();
         editor.putInt(Constants.NOTIFICATION_ICON, iconId);
-        editor.commit();
+        editor.apply();
     }
 
     //    public void viewNotificationSettings() {
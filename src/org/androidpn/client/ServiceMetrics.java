@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A point in time copy of the service's task and queue metrics: the
+ * in-flight task gauge, the lanes of the {@link LaneScheduler}, the
+ * stages of the {@link DeliveryPipeline} and the session and stanza
+ * counters of the {@link StreamManager}.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public final class ServiceMetrics {
+
+    private final int inFlightTasks;
+
+    private final int inFlightHighWater;
+
+    private final long submittedTasks;
+
+    private final long completedTasks;
+
+    private final long idleTransitions;
+
+    private final Map<LaneScheduler.Lane, LaneScheduler.LaneSnapshot> lanes;
+
+    private final DeliveryPipeline.StageSnapshot[] stages;
+
+    private final long sessionsEstablished;
+
+    private final long sessionsLost;
+
+    private final long lostRequests;
+
+    private final long inboundStanzas;
+
+    private final long outboundStanzas;
+
+    private final int unackedRequests;
+
+    private final long takenAt;
+
+    ServiceMetrics(int inFlightTasks, int inFlightHighWater,
+            long submittedTasks, long completedTasks, long idleTransitions,
+            LaneScheduler laneScheduler, DeliveryPipeline pipeline,
+            StreamManager streamManager) {
+        this.inFlightTasks = inFlightTasks;
+        this.inFlightHighWater = inFlightHighWater;
+        this.submittedTasks = submittedTasks;
+        this.completedTasks = completedTasks;
+        this.idleTransitions = idleTransitions;
+        this.lanes = new EnumMap<LaneScheduler.Lane, LaneScheduler.LaneSnapshot>(
+                LaneScheduler.Lane.class);
+        for (LaneScheduler.Lane lane : LaneScheduler.Lane.values()) {
+            lanes.put(lane, laneScheduler.getSnapshot(lane));
+        }
+        this.stages = new DeliveryPipeline.StageSnapshot[] {
+                pipeline.getDedupSnapshot(), pipeline.getPersistSnapshot(),
+                pipeline.getDispatchSnapshot() };
+        this.sessionsEstablished = streamManager.getSessionsEstablished();
+        this.sessionsLost = streamManager.getSessionsLost();
+        this.lostRequests = streamManager.getLostRequests();
+        this.inboundStanzas = streamManager.getInboundCount();
+        this.outboundStanzas = streamManager.getOutboundCount();
+        this.unackedRequests = streamManager.getUnackedCount();
+        this.takenAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of tracked tasks submitted and not yet finished.
+     */
+    public int getInFlightTasks() {
+        return inFlightTasks;
+    }
+
+    /**
+     * Returns the largest number of tracked tasks in flight at once.
+     */
+    public int getInFlightHighWater() {
+        return inFlightHighWater;
+    }
+
+    public long getSubmittedTasks() {
+        return submittedTasks;
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * Returns how many times the client became idle.
+     */
+    public long getIdleTransitions() {
+        return idleTransitions;
+    }
+
+    public LaneScheduler.LaneSnapshot getLane(LaneScheduler.Lane lane) {
+        return lanes.get(lane);
+    }
+
+    /**
+     * Returns the dedup, persist and dispatch stages, in that order.
+     */
+    public DeliveryPipeline.StageSnapshot[] getStages() {
+        return stages.clone();
+    }
+
+    public long getSessionsEstablished() {
+        return sessionsEstablished;
+    }
+
+    public long getSessionsLost() {
+        return sessionsLost;
+    }
+
+    /**
+     * Returns the number of requests left without a response by the lost
+     * sessions.
+     */
+    public long getLostRequests() {
+        return lostRequests;
+    }
+
+    /**
+     * Returns the stanzas received in the current session.
+     */
+    public long getInboundStanzas() {
+        return inboundStanzas;
+    }
+
+    /**
+     * Returns the stanzas sent in the current session.
+     */
+    public long getOutboundStanzas() {
+        return outboundStanzas;
+    }
+
+    /**
+     * Returns the requests of the current session still waiting for their
+     * response.
+     */
+    public int getUnackedRequests() {
+        return unackedRequests;
+    }
+
+    /**
+     * Returns the tasks queued in all the lanes and pipeline stages.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (LaneScheduler.LaneSnapshot lane : lanes.values()) {
+            depth += lane.getQueueDepth();
+        }
+        for (DeliveryPipeline.StageSnapshot stage : stages) {
+            depth += stage.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the wall clock time the snapshot was taken at.
+     */
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("tasks inFlight=").append(inFlightTasks).append(
+                " highWater=").append(inFlightHighWater).append(
+                " submitted=").append(submittedTasks).append(" completed=")
+                .append(completedTasks).append(" idle=").append(
+                        idleTransitions);
+        for (LaneScheduler.LaneSnapshot lane : lanes.values()) {
+            buf.append('\n').append(lane);
+        }
+        for (DeliveryPipeline.StageSnapshot stage : stages) {
+            buf.append('\n').append(stage);
+        }
+        buf.append("\nsessions established=").append(sessionsEstablished)
+                .append(" lost=").append(sessionsLost).append(
+                        " lostRequests=").append(lostRequests).append(
+                        " stanzas in=").append(inboundStanzas).append(
+                        " out=").append(outboundStanzas).append(" unacked=")
+                .append(unackedRequests);
+        return buf.toString();
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import android.util.Log;
+
+/**
+ * Stanza accounting for the persistent connection, modelled on the
+ * counters of XEP-0198.
+ *
+ * The bundled asmack neither exposes the server's stream features nor
+ * delivers top-level elements other than message/iq/presence, so the
+ * &lt;enable/&gt;, &lt;a/&gt; and &lt;resume/&gt; nonzas cannot be
+ * negotiated on the wire, and a lost session cannot be resumed. It is
+ * re-established in full, through the reconnection backoff. This class
+ * keeps, for the current session:
+ * <ul>
+ * <li>the inbound and outbound stanza counters,</li>
+ * <li>the outbound IQ requests still waiting for their result or error.
+ * When the session is lost, they are counted as lost requests and
+ * dropped: a ping or a registration is stale in a new session.</li>
+ * </ul>
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class StreamManager {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(StreamManager.class);
+
+    private static final int MAX_UNACKED = 32;
+
+    private final Map<String, Packet> unacked = new LinkedHashMap<String, Packet>();
+
+    private final PacketListener outboundListener = new PacketListener() {
+        public void processPacket(Packet packet) {
+            outboundCount.incrementAndGet();
+            if (packet instanceof IQ) {
+                IQ.Type type = ((IQ) packet).getType();
+                if (type == IQ.Type.GET || type == IQ.Type.SET) {
+                    track(packet);
+                }
+            }
+        }
+    };
+
+    private final PacketListener inboundListener = new PacketListener() {
+        public void processPacket(Packet packet) {
+            inboundCount.incrementAndGet();
+            if (packet instanceof IQ) {
+                IQ.Type type = ((IQ) packet).getType();
+                if (type == IQ.Type.RESULT || type == IQ.Type.ERROR) {
+                    ack(packet.getPacketID());
+                }
+            }
+        }
+    };
+
+    private final PacketFilter allFilter = new PacketFilter() {
+        public boolean accept(Packet packet) {
+            return true;
+        }
+    };
+
+    private final AtomicLong inboundCount = new AtomicLong();
+
+    private final AtomicLong outboundCount = new AtomicLong();
+
+    private XMPPConnection connection;
+
+    private String sessionId;
+
+    private long sessionsEstablished;
+
+    private long sessionsLost;
+
+    private long lostRequests;
+
+    public StreamManager() {
+    }
+
+    /**
+     * Called when the connection is ready. Attaches the stanza counters to
+     * it.
+     */
+    public void sessionEstablished(XMPPConnection connection) {
+        synchronized (this) {
+            detach();
+            this.connection = connection;
+            sessionId = connection.getConnectionID();
+            sessionsEstablished++;
+            inboundCount.set(0);
+            outboundCount.set(0);
+            unacked.clear();
+            Log.d(LOGTAG, "Session " + sessionId + " established");
+        }
+        connection.addPacketSendingListener(outboundListener, allFilter);
+        connection.addPacketListener(inboundListener, allFilter);
+    }
+
+    /**
+     * Called when the established session was lost. Its unacked requests
+     * are counted as lost.
+     */
+    public synchronized void sessionLost() {
+        if (connection != null) {
+            sessionsLost++;
+            lostRequests += unacked.size();
+            Log.d(LOGTAG, "Session " + sessionId + " lost with "
+                    + unacked.size() + " unacked requests");
+        }
+        close();
+    }
+
+    /**
+     * Called when the session was closed on purpose.
+     */
+    public synchronized void sessionClosed() {
+        close();
+    }
+
+    public synchronized String getSessionId() {
+        return sessionId;
+    }
+
+    public long getInboundCount() {
+        return inboundCount.get();
+    }
+
+    public long getOutboundCount() {
+        return outboundCount.get();
+    }
+
+    public synchronized int getUnackedCount() {
+        return unacked.size();
+    }
+
+    public synchronized long getSessionsEstablished() {
+        return sessionsEstablished;
+    }
+
+    public synchronized long getSessionsLost() {
+        return sessionsLost;
+    }
+
+    /**
+     * Returns the number of requests left without a response by the lost
+     * sessions.
+     */
+    public synchronized long getLostRequests() {
+        return lostRequests;
+    }
+
+    private synchronized void track(Packet packet) {
+        unacked.put(packet.getPacketID(), packet);
+        if (unacked.size() > MAX_UNACKED) {
+            Iterator<String> it = unacked.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private synchronized void ack(String packetId) {
+        if (packetId != null) {
+            unacked.remove(packetId);
+        }
+    }
+
+    private void close() {
+        detach();
+        sessionId = null;
+        unacked.clear();
+    }
+
+    private void detach() {
+        if (connection != null) {
+            connection.removePacketSendingListener(outboundListener);
+            connection.removePacketListener(inboundListener);
+            connection = null;
+        }
+    }
+
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import android.util.Log;
+
+/**
+ * A TLS session cache for the XMPP connection, so that reconnects can use
+ * an abbreviated handshake instead of a full one.
+ *
+ * smack creates a new SSLContext for every STARTTLS negotiation, with
+ * SSLContext.getInstance("TLS"), and each SSLContext has its own, empty,
+ * client session cache. smack offers no way to pass it a context, so the
+ * only way to share the cache is a provider serving "SSLContext.TLS" in
+ * front of the platform one. Contexts initialized with smack's
+ * ServerTrustManager are backed by one shared SSLContext, whose session
+ * cache is keyed by the server host and port and survives XMPPConnection
+ * re-creation. Any other caller gets a plain, unshared platform context.
+ *
+ * The provider is visible to the whole process of the host application,
+ * so the cache is off unless the application enables it. The trust
+ * decisions of the shared context go to the trust manager of the
+ * connection negotiating on the current thread; smack initializes the
+ * context and runs the handshake on the same thread.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public final class TlsSessionCache {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(TlsSessionCache.class);
+
+    private static final String PROTOCOL = "TLS";
+
+    private static final String SMACK_TRUST_MANAGER = "org.jivesoftware.smack.ServerTrustManager";
+
+    private static final int MAX_KNOWN_SESSIONS = 32;
+
+    private static Provider platformProvider;
+
+    private static SSLContext sharedContext;
+
+    private static final ForwardingTrustManager sharedTrustManager = new ForwardingTrustManager();
+
+    private static final Set<String> knownSessions = new LinkedHashSet<String>();
+
+    private static final AtomicLong fullHandshakes = new AtomicLong();
+
+    private static final AtomicLong abbreviatedHandshakes = new AtomicLong();
+
+    private TlsSessionCache() {
+    }
+
+    /**
+     * Installs the caching provider. Calling it more than once has no
+     * effect.
+     */
+    public static synchronized void install() {
+        if (platformProvider != null) {
+            return;
+        }
+        try {
+            platformProvider = SSLContext.getInstance(PROTOCOL).getProvider();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(LOGTAG, "TLS is not available", e);
+            return;
+        }
+        Security.insertProviderAt(new CachingProvider(), 1);
+        Log.d(LOGTAG, "Installed in front of " + platformProvider.getName());
+    }
+
+    public static long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    public static long getAbbreviatedHandshakes() {
+        return abbreviatedHandshakes.get();
+    }
+
+    private static synchronized SSLContext getSharedContext(
+            KeyManager[] keyManagers, SecureRandom random)
+            throws KeyManagementException, NoSuchAlgorithmException {
+        if (sharedContext == null) {
+            SSLContext context = SSLContext.getInstance(PROTOCOL,
+                    platformProvider);
+            context.init(keyManagers,
+                    new TrustManager[] { sharedTrustManager }, random);
+            sharedContext = context;
+        }
+        return sharedContext;
+    }
+
+    private static void handshakeCompleted(HandshakeCompletedEvent event) {
+        String sessionId = toHex(event.getSession().getId());
+        boolean abbreviated;
+        synchronized (knownSessions) {
+            abbreviated = !knownSessions.add(sessionId);
+            if (knownSessions.size() > MAX_KNOWN_SESSIONS) {
+                Iterator<String> it = knownSessions.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        if (abbreviated) {
+            abbreviatedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+        Log.d(LOGTAG, (abbreviated ? "Abbreviated" : "Full")
+                + " TLS handshake with " + event.getSession().getPeerHost()
+                + ":" + event.getSession().getPeerPort() + " (full="
+                + fullHandshakes.get() + ", abbreviated="
+                + abbreviatedHandshakes.get() + ")");
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+            buf.append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+
+    private static boolean isSmackTrustManager(TrustManager[] trustManagers) {
+        return trustManagers != null && trustManagers.length == 1
+                && trustManagers[0] instanceof X509TrustManager
+                && SMACK_TRUST_MANAGER.equals(trustManagers[0].getClass()
+                        .getName());
+    }
+
+    /**
+     * The provider serving the caching SSLContext.
+     */
+    private static final class CachingProvider extends Provider {
+
+        private static final long serialVersionUID = 1L;
+
+        // Provider(String, String, String) is not available on the target API
+        @SuppressWarnings("deprecation")
+        CachingProvider() {
+            super("AndroidpnTls", 1.0, "TLS session cache for androidpn");
+            put("SSLContext." + PROTOCOL, CachingContextSpi.class.getName());
+        }
+    }
+
+    /**
+     * SSLContext implementation that shares one session cache between
+     * smack connections.
+     */
+    public static final class CachingContextSpi extends SSLContextSpi {
+
+        private SSLContext delegate;
+
+        private boolean shared;
+
+        public CachingContextSpi() {
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm,
+                SecureRandom sr) throws KeyManagementException {
+            try {
+                if (isSmackTrustManager(tm)) {
+                    // smack runs the handshake on the thread that
+                    // initialized the context
+                    sharedTrustManager.setDelegate((X509TrustManager) tm[0]);
+                    delegate = getSharedContext(km, sr);
+                    shared = true;
+                } else {
+                    delegate = SSLContext.getInstance(PROTOCOL,
+                            platformProvider);
+                    delegate.init(km, tm, sr);
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new KeyManagementException(e.getMessage());
+            }
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            SSLSocketFactory factory = delegate.getSocketFactory();
+            return shared ? new CountingSocketFactory(factory) : factory;
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return delegate.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return delegate.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+    }
+
+    /**
+     * Trust manager that forwards to the trust manager of the connection
+     * being negotiated on the current thread. With none, nothing is
+     * trusted.
+     */
+    private static final class ForwardingTrustManager implements
+            X509TrustManager {
+
+        private final ThreadLocal<X509TrustManager> delegate = new ThreadLocal<X509TrustManager>();
+
+        void setDelegate(X509TrustManager trustManager) {
+            delegate.set(trustManager);
+        }
+
+        private X509TrustManager getDelegate() throws CertificateException {
+            X509TrustManager trustManager = delegate.get();
+            if (trustManager == null) {
+                throw new CertificateException(
+                        "No connection negotiating on this thread");
+            }
+            return trustManager;
+        }
+
+        public void checkClientTrusted(X509Certificate[] chain,
+                String authType) throws CertificateException {
+            getDelegate().checkClientTrusted(chain, authType);
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain,
+                String authType) throws CertificateException {
+            getDelegate().checkServerTrusted(chain, authType);
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            X509TrustManager trustManager = delegate.get();
+            return trustManager == null ? new X509Certificate[0]
+                    : trustManager.getAcceptedIssuers();
+        }
+    }
+
+    /**
+     * Socket factory that counts full and abbreviated handshakes.
+     */
+    private static final class CountingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        private final HandshakeCompletedListener listener = new HandshakeCompletedListener() {
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                TlsSessionCache.handshakeCompleted(event);
+            }
+        };
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket track(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(listener);
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port,
+                boolean autoClose) throws IOException {
+            return track(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port,
+                InetAddress localHost, int localPort) throws IOException {
+            return track(delegate.createSocket(host, port, localHost,
+                    localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port)
+                throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port,
+                InetAddress localAddress, int localPort) throws IOException {
+            return track(delegate.createSocket(address, port, localAddress,
+                    localPort));
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * An XMPP server endpoint with its health score. The score is a decaying
+ * success rate of the connect attempts, so that an endpoint that keeps
+ * failing is tried after the healthy ones.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class XmppEndpoint {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(XmppEndpoint.class);
+
+    /** Weight of the history in the health score. */
+    private static final double DECAY = 0.7d;
+
+    private final String host;
+
+    private final int port;
+
+    private final int order;
+
+    private double health = 1d;
+
+    private long lastConnectMillis;
+
+    public XmppEndpoint(String host, int port, int order) {
+        this.host = host;
+        this.port = port;
+        this.order = order;
+    }
+
+    /**
+     * Parses a comma separated list of host[:port] endpoints.
+     * @param defaultPort the port of the endpoints without one
+     */
+    public static List<XmppEndpoint> parseList(String list, int defaultPort) {
+        List<XmppEndpoint> endpoints = new ArrayList<XmppEndpoint>();
+        if (list == null) {
+            return endpoints;
+        }
+        for (String item : list.split(",")) {
+            item = item.trim();
+            if (item.length() == 0) {
+                continue;
+            }
+            int colon = item.lastIndexOf(':');
+            String host = item;
+            int port = defaultPort;
+            if (colon > 0) {
+                host = item.substring(0, colon);
+                try {
+                    port = Integer.parseInt(item.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    Log.w(LOGTAG, "Invalid endpoint " + item);
+                    continue;
+                }
+            }
+            endpoints.add(new XmppEndpoint(host, port, endpoints.size()));
+        }
+        return endpoints;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the position of the endpoint in the configured list.
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    public synchronized double getHealth() {
+        return health;
+    }
+
+    public synchronized long getLastConnectMillis() {
+        return lastConnectMillis;
+    }
+
+    public synchronized void connected(long elapsedMillis) {
+        health = health * DECAY + (1d - DECAY);
+        lastConnectMillis = elapsedMillis;
+    }
+
+    public synchronized void failed() {
+        health = health * DECAY;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
+}
@@ -15,14 +15,19 @@
  */
 package org.androidpn.client;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.androidpn.client.ConnectionMetrics.Phase;
+import org.androidpn.client.ConnectionStateMachine.State;
 import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketCollector;
 import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
@@ -36,9 +41,8 @@ import org.jivesoftware.smack.packet.Registration;
 import org.jivesoftware.smack.provider.ProviderManager;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -52,18 +56,36 @@ public class XmppManager {
 
     private static final String XMPP_RESOURCE_NAME = "AndroidpnClient";
 
+    /** No stream compression. */
+    public static final String COMPRESSION_NONE = "none";
+
+    /** zlib stream compression, if the server offers it. */
+    public static final String COMPRESSION_ZLIB = "zlib";
+
     private Context context;
 
     private NotificationService.TaskSubmitter taskSubmitter;
 
     private NotificationService.TaskTracker taskTracker;
 
-    private SharedPreferences sharedPrefs;
+    private PreferenceStore sharedPrefs;
 
     private String xmppHost;
 
     private int xmppPort;
 
+    private boolean prewarmEnabled;
+
+    private final ScheduledExecutorService scheduler;
+
+    //已有一次预热在排队时，后续的网络广播不再重复提交
+    private final AtomicBoolean prewarmPending = new AtomicBoolean();
+
+    private boolean compressionEnabled;
+
+    //缓存DNS解析结果，并可以预先建立TCP连接
+    private final XmppSocketFactory socketFactory;
+
     private XMPPConnection connection;
 
     private String username;
@@ -76,13 +98,33 @@ public class XmppManager {
 
     private Handler handler;
 
-    private List<Runnable> taskList;
+    //连接状态机，驱动 连接 -> 注册 -> 登陆 的流程
+    private final ConnectionStateMachine stateMachine;
+
+    private ReconnectionScheduler reconnection;
+
+    //会话的数据包计数和未应答的请求
+    private final StreamManager streamManager;
 
-    private boolean running = false;
+    //应用层心跳，按网络学习最长的安全空闲间隔
+    private final KeepAliveManager keepAliveManager;
 
-    private Future<?> futureTask;
+    //连接各阶段的耗时统计
+    private final ConnectionMetrics metrics;
 
-    private Thread reconnection;
+    private volatile long attemptStartedAt;
+
+    //通知去重，重连后服务器重发的通知不再显示
+    private final NotificationDeduplicator deduplicator;
+
+    //通知日志，分发之前先记录，用于历史、重放和崩溃恢复
+    private final NotificationJournal journal;
+
+    //进程内的通知分发，不经过广播
+    private final NotificationBus notificationBus;
+
+    //通知的去重、记录、分发流水线
+    private final DeliveryPipeline deliveryPipeline;
 
     /**
      * XmppManager的构造方法
@@ -95,34 +137,115 @@ public class XmppManager {
         taskSubmitter = notificationService.getTaskSubmitter();
         taskTracker = notificationService.getTaskTracker();
         sharedPrefs = notificationService.getSharedPreferences();
+        scheduler = notificationService.getScheduledExecutorService();
 
         xmppHost = sharedPrefs.getString(Constants.XMPP_HOST, "localhost");
         xmppPort = sharedPrefs.getInt(Constants.XMPP_PORT, 5222);
+        prewarmEnabled = sharedPrefs.getBoolean(Constants.XMPP_PREWARM, true);
+        compressionEnabled = isCompressionAvailable(sharedPrefs.getString(
+                Constants.XMPP_COMPRESSION, COMPRESSION_NONE));
         username = sharedPrefs.getString(Constants.XMPP_USERNAME, "");
         password = sharedPrefs.getString(Constants.XMPP_PASSWORD, "");
 
+        deduplicator = new NotificationDeduplicator(context,
+                notificationService.getScheduledExecutorService());
+        journal = new NotificationJournal(context, notificationService
+                .getScheduledExecutorService());
+        notificationBus = notificationService.getNotificationBus();
+        deliveryPipeline = new DeliveryPipeline(deduplicator, journal,
+                notificationBus, sharedPrefs);
         connectionListener = new PersistentConnectionListener(this);
         notificationPacketListener = new NotificationPacketListener(this);
 
         handler = new Handler();
-        taskList = new ArrayList<Runnable>();
+        stateMachine = new ConnectionStateMachine();
+        metrics = new ConnectionMetrics();
+        socketFactory = new XmppSocketFactory(new HostResolver(), metrics);
+        socketFactory.setEndpoints(XmppEndpoint.parseList(sharedPrefs
+                .getString(Constants.XMPP_ENDPOINTS, ""), xmppPort));
+        //TLS会话缓存，重连时可以复用之前的会话
+        //它替换整个进程的SSLContext.TLS，需要应用显式开启
+        if (sharedPrefs.getBoolean(Constants.TLS_SESSION_CACHE, false)) {
+            TlsSessionCache.install();
+        }
+        streamManager = new StreamManager();
+        keepAliveManager = new KeepAliveManager(this, notificationService
+                .getScheduledExecutorService(), sharedPrefs);
         /**
-         * 重连线程
+         * 重连调度器
          */
-        reconnection = new ReconnectionThread(this);
+        reconnection = new ReconnectionScheduler(this, notificationService
+                .getScheduledExecutorService());
     }
 
     public Context getContext() {
         return context;
     }
 
+    /**
+     * Starts a new connect/register/login attempt unless one is already in
+     * progress or the connection is ready.
+     */
     public void connect() {
         Log.d(LOGTAG, "connect()...");
-        submitLoginTask();
+        int token = stateMachine.begin();
+        if (token < 0) {
+            Log.d(LOGTAG, "connect()... ignored, state="
+                    + stateMachine.getState());
+            return;
+        }
+        attemptStartedAt = SystemClock.elapsedRealtime();
+        if (!submit(new ConnectTask(token))) {
+            fail(token);
+        }
+    }
+
+    /**
+     * Connects right away, skipping any pending reconnection backoff.
+     */
+    public void reconnectNow() {
+        Log.d(LOGTAG, "reconnectNow()...");
+        reconnection.reconnectNow();
+    }
+
+    /**
+     * Resolves the server address and opens the TCP connection ahead of
+     * the next connect(), if pre-warming is enabled.
+     */
+    public void prewarm() {
+        //断网时缓存的DNS失败在新网络上不再成立
+        socketFactory.getResolver().clearFailures();
+        if (!prewarmEnabled || stateMachine.getState() == State.READY) {
+            return;
+        }
+        if (!prewarmPending.compareAndSet(false, true)) {
+            return;
+        }
+        Log.d(LOGTAG, "prewarm()...");
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    try {
+                        socketFactory.prewarm(xmppHost, xmppPort);
+                    } finally {
+                        prewarmPending.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            prewarmPending.set(false);
+            Log.w(LOGTAG, "Scheduler is shut down");
+        }
     }
 
     public void disconnect() {
         Log.d(LOGTAG, "disconnect()...");
+        reconnection.cancel();
+        keepAliveManager.stop();
+        streamManager.sessionClosed();
+        socketFactory.discardPrewarmed();
+        deduplicator.flush();
+        journal.sync();
         terminatePersistentConnection();
     }
 
@@ -131,22 +254,63 @@ public class XmppManager {
      */
     public void terminatePersistentConnection() {
         Log.d(LOGTAG, "terminatePersistentConnection()...");
+        stateMachine.reset();
         Runnable runnable = new Runnable() {
 
             final XmppManager xmppManager = XmppManager.this;
 
             public void run() {
-                if (xmppManager.isConnected()) {
-                    Log.d(LOGTAG, "terminatePersistentConnection()... run()");
-                    xmppManager.getConnection().removePacketListener(
-                            xmppManager.getNotificationPacketListener());  //移除数据包的监听
-                    xmppManager.getConnection().disconnect();
+                try {
+                    if (xmppManager.isConnected()) {
+                        Log.d(LOGTAG, "terminatePersistentConnection()... run()");
+                        xmppManager.getConnection().removePacketListener(
+                                xmppManager.getNotificationPacketListener());  //移除数据包的监听
+                        xmppManager.getConnection().disconnect();
+                    }
+                } finally {
+                    taskTracker.decrease();
                 }
-                xmppManager.runTask();
             }
 
         };
-        addTask(runnable);
+        submit(runnable, LaneScheduler.Priority.HIGH);
+    }
+
+    /**
+     * Called when the established connection was lost, so that the next
+     * connect() starts a fresh attempt.
+     */
+    public void connectionLost() {
+        Log.d(LOGTAG, "connectionLost()... state=" + stateMachine.reset());
+        keepAliveManager.stop();
+        streamManager.sessionLost();
+    }
+
+    /**
+     * Called when a keepalive ping went unanswered. The socket is
+     * half-open, so it is closed and the connection is treated as lost.
+     */
+    public void keepAliveFailed() {
+        Log.d(LOGTAG, "keepAliveFailed()...");
+        final XMPPConnection deadConnection = connection;
+        connectionLost();
+        if (deadConnection != null) {
+            Runnable runnable = new Runnable() {
+                public void run() {
+                    try {
+                        deadConnection
+                                .removeConnectionListener(connectionListener);
+                        deadConnection.disconnect();
+                    } catch (Exception e) {
+                        Log.w(LOGTAG, "Failed to close the connection", e);
+                    } finally {
+                        taskTracker.decrease();
+                    }
+                }
+            };
+            submit(runnable, LaneScheduler.Priority.HIGH);
+        }
+        scheduleReconnection();
     }
 
     public XMPPConnection getConnection() {
@@ -173,6 +337,10 @@ public class XmppManager {
         this.password = password;
     }
 
+    public NotificationService.TaskSubmitter getTaskSubmitter() {
+        return taskSubmitter;
+    }
+
     public ConnectionListener getConnectionListener() {
         return connectionListener;
     }
@@ -181,57 +349,73 @@ public class XmppManager {
         return notificationPacketListener;
     }
 
-    /**
-     * 启动重连线程
-     */
-    public void startReconnectionThread() {
-        synchronized (reconnection) {
-            if (!reconnection.isAlive()) {
-                reconnection.setName("Xmpp Reconnection Thread");
-                reconnection.start();
-            }
-        }
+    public ConnectionStateMachine getStateMachine() {
+        return stateMachine;
     }
 
-    public Handler getHandler() {
-        return handler;
+    public XmppSocketFactory getSocketFactory() {
+        return socketFactory;
     }
 
-    public void reregisterAccount() {
-        removeAccount();
-        submitLoginTask();
-        runTask();
+    public StreamManager getStreamManager() {
+        return streamManager;
     }
 
-    public List<Runnable> getTaskList() {
-        return taskList;
+    public KeepAliveManager getKeepAliveManager() {
+        return keepAliveManager;
     }
 
-    public Future<?> getFutureTask() {
-        return futureTask;
+    public NotificationDeduplicator getDeduplicator() {
+        return deduplicator;
     }
 
-   /**
-    * 执行队列中的任务
-    * 执行该方法后 才真正执行run方法
-    */
-    public void runTask() {
-        Log.d(LOGTAG, "runTask()...");
-        synchronized (taskList) {
-            running = false;
-            futureTask = null;
-            if (!taskList.isEmpty()) {
-                Runnable runnable = (Runnable) taskList.get(0);
-                taskList.remove(0);
-                running = true;
-                futureTask = taskSubmitter.submit(runnable);
-                if (futureTask == null) {
-                    taskTracker.decrease();
-                }
-            }
+    public NotificationJournal getJournal() {
+        return journal;
+    }
+
+    public NotificationBus getNotificationBus() {
+        return notificationBus;
+    }
+
+    public DeliveryPipeline getDeliveryPipeline() {
+        return deliveryPipeline;
+    }
+
+    public ConnectionMetrics getConnectionMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 安排重连，按退避的时间间隔
+     */
+    public void scheduleReconnection() {
+        reconnection.schedule();
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Returns true if the current connection uses stream compression.
+     */
+    public boolean isUsingCompression() {
+        return connection != null && connection.isUsingCompression();
+    }
+
+    /**
+     * 判断是否可以使用流压缩
+     * smack在协商压缩时需要同步刷新的zlib流，旧的系统不支持
+     */
+    private static boolean isCompressionAvailable(String mode) {
+        if (!COMPRESSION_ZLIB.equals(mode)) {
+            return false;
+        }
+        if (!ZlibOutputStream.isSupported()) {
+            Log.w(LOGTAG, "Stream compression is not supported on this device");
+            return false;
         }
-        taskTracker.decrease();
-        Log.d(LOGTAG, "runTask()...done");
+        return true;
     }
 
     /**
@@ -269,52 +453,122 @@ public class XmppManager {
                 && sharedPrefs.contains(Constants.XMPP_PASSWORD);
     }
 
-    private void submitConnectTask() {
-        Log.d(LOGTAG, "submitConnectTask()...");
-        addTask(new ConnectTask());
+    /**
+     * 提交任务到执行服务
+     * @param runnable
+     * @return false if the control lane rejected the task
+     */
+    private boolean submit(Runnable runnable) {
+        return submit(runnable, LaneScheduler.Priority.NORMAL);
     }
 
-    private void submitRegisterTask() {
-        Log.d(LOGTAG, "submitRegisterTask()...");
-        submitConnectTask();
-        addTask(new RegisterTask());
+    /**
+     * 提交任务到控制通道，断开连接的任务优先于排队的连接任务
+     * @return false if the control lane rejected the task
+     */
+    private boolean submit(Runnable runnable, LaneScheduler.Priority priority) {
+        taskTracker.increase();
+        Future<?> future = taskSubmitter.submit(runnable,
+                LaneScheduler.Lane.CONTROL, priority);
+        if (future == null) {
+            taskTracker.decrease();
+            return false;
+        }
+        return true;
     }
 
-    private void submitLoginTask() {
-        Log.d(LOGTAG, "submitLoginTask()...");
-        submitRegisterTask();
-        addTask(new LoginTask());
+    /**
+     * Moves the attempt to the next state and submits the task for it.
+     * If the attempt has been superseded in the meantime, nothing happens.
+     * If the control lane rejects the task, the attempt fails, so that a
+     * reconnection is scheduled instead of leaving the state machine in a
+     * state that no task drives.
+     */
+    private void advance(int token, State from, State to, Runnable next) {
+        if (stateMachine.advance(token, from, to)) {
+            if (next != null && !submit(next)) {
+                Log.w(LOGTAG, "Attempt " + token + " rejected in state " + to);
+                fail(token);
+            }
+        } else {
+            Log.d(LOGTAG, "Attempt " + token + " superseded, state="
+                    + stateMachine.getState());
+        }
     }
 
     /**
-     * 添加任务到队列
-     * @param runnable
+     * Fails the attempt and schedules a reconnection.
      */
-    private void addTask(Runnable runnable) {
-        Log.d(LOGTAG, "addTask(runnable)... running: "+running);
-        taskTracker.increase();
-        synchronized (taskList) {
-            if (taskList.isEmpty() && !running) {
-            	Log.d(LOGTAG, "addTask(runnable)... taskList.isEmpty() && !running");
-                running = true;
-                futureTask = taskSubmitter.submit(runnable);
-                if (futureTask == null) {
-                    taskTracker.decrease();
-                }
-            } else {
-                taskList.add(runnable);
-            }
+    private void fail(int token) {
+        if (stateMachine.fail(token)) {
+            metrics.failure(Phase.READY);
+            scheduleReconnection();
         }
-        Log.d(LOGTAG, "addTask(runnable)... done");
+    }
+
+    /**
+     * Records the TLS phase of the connect started at connectStart, from
+     * the socket handed to smack to the secured stream. smack's connect()
+     * returns once the stream has been reopened over TLS. Nothing is
+     * recorded if the connect failed before it got a socket.
+     */
+    private void recordTls(long connectStart, boolean secured) {
+        long socketAt = socketFactory.getLastSocketAt();
+        if (socketAt < connectStart) {
+            return;
+        }
+        if (secured) {
+            metrics.success(Phase.TLS, SystemClock.elapsedRealtime()
+                    - socketAt);
+        } else {
+            metrics.failure(Phase.TLS);
+        }
+    }
+
+    private void reregisterAccount(int token) {
+        removeAccount();
+        advance(token, State.AUTHENTICATING, State.REGISTERING,
+                new RegisterTask(token));
     }
 
     private void removeAccount() {
-        Editor editor = sharedPrefs.edit();
+        //账户信息同步写入，不延迟
+        PreferenceStore.Editor editor = sharedPrefs.edit();
         editor.remove(Constants.XMPP_USERNAME);
         editor.remove(Constants.XMPP_PASSWORD);
         editor.commit();
     }
 
+    /**
+     * Base class for the connection phase tasks.
+     */
+    private abstract class PhaseTask implements Runnable {
+
+        final XmppManager xmppManager;
+
+        final int token;
+
+        PhaseTask(int token) {
+            this.xmppManager = XmppManager.this;
+            this.token = token;
+        }
+
+        public final void run() {
+            try {
+                if (stateMachine.isCurrent(token)) {
+                    runPhase();
+                } else {
+                    Log.d(LOGTAG, getClass().getSimpleName()
+                            + " skipped, attempt " + token + " superseded");
+                }
+            } finally {
+                taskTracker.decrease();
+            }
+        }
+
+        abstract void runPhase();
+    }
+
     /**
      * 执行顺序：第一步
      * A runnable task to connect the server. 
@@ -322,15 +576,13 @@ public class XmppManager {
      * 
      * 通过connection.connect();实现连接服务器
      */
-    private class ConnectTask implements Runnable {
-
-        final XmppManager xmppManager;
+    private class ConnectTask extends PhaseTask {
 
-        private ConnectTask() {
-            this.xmppManager = XmppManager.this;
+        private ConnectTask(int token) {
+            super(token);
         }
 
-        public void run() {
+        void runPhase() {
             Log.i(LOGTAG, "ConnectTask.run()...");
 
             if (!xmppManager.isConnected()) {		//未连接到XMPP服务器
@@ -343,15 +595,20 @@ public class XmppManager {
                 // connConfig.setSecurityMode(SecurityMode.disabled);
                 connConfig.setSecurityMode(SecurityMode.required);
                 connConfig.setSASLAuthenticationEnabled(false);
-                connConfig.setCompressionEnabled(false);
+                connConfig.setCompressionEnabled(compressionEnabled);
+                connConfig.setSocketFactory(socketFactory);
 
                 XMPPConnection connection = new XMPPConnection(connConfig);
+                CompressionStats.newSession();
                 xmppManager.setConnection(connection);
 
+                long connectStart = SystemClock.elapsedRealtime();
                 try {
                     // Connect to the server
                     connection.connect();
                     Log.i(LOGTAG, "XMPP connected successfully");
+                    xmppManager.recordTls(connectStart, connection
+                            .isSecureConnection());
 
                     // packet provider
                     /** 
@@ -359,22 +616,32 @@ public class XmppManager {
                      * 如果要用这个协议，其IQ的子类（NotificationIQ）
                      * 和IQProvider的子类（NotificationIQProvider）要进行重写 
                      */
-                    ProviderManager.getInstance().addIQProvider("notification",
-                            "androidpn:iq:notification",
-                            new NotificationIQProvider());
+                    NotificationIQProvider notificationProvider = new NotificationIQProvider();
+                    ProviderManager.getInstance().addIQProvider(
+                            NotificationIQProvider.ELEMENT_NAME,
+                            NotificationIQProvider.NAMESPACE,
+                            notificationProvider);
+                    ProviderManager.getInstance().addIQProvider(
+                            NotificationIQProvider.BATCH_ELEMENT_NAME,
+                            NotificationIQProvider.NAMESPACE,
+                            notificationProvider);
+                    ProviderManager.getInstance().addIQProvider(
+                            KeepAliveManager.ELEMENT_NAME,
+                            KeepAliveManager.NAMESPACE,
+                            new KeepAliveManager.PingProvider());
 
                 } catch (XMPPException e) {
                     Log.e(LOGTAG, "XMPP connection failed", e);
-                    running = false;
+                    xmppManager.recordTls(connectStart, false);
+                    xmppManager.fail(token);
+                    return;
                 }
-                //执行任务
-                xmppManager.runTask();
 
             } else {
                 Log.i(LOGTAG, "XMPP connected already");
-                //执行任务
-                xmppManager.runTask();
             }
+            xmppManager.advance(token, State.CONNECTING, State.REGISTERING,
+                    new RegisterTask(token));
         }
     }
 
@@ -383,15 +650,13 @@ public class XmppManager {
      * A runnable task to register a new user onto the server.
      * 该内部类主要实现注册一个新的用户在服务器 
      */
-    private class RegisterTask implements Runnable {
+    private class RegisterTask extends PhaseTask {
 
-        final XmppManager xmppManager;
-
-        private RegisterTask() {
-            xmppManager = XmppManager.this;
+        private RegisterTask(int token) {
+            super(token);
         }
 
-        public void run() {
+        void runPhase() {
             Log.i(LOGTAG, "RegisterTask.run()...");
 
             if (!xmppManager.isRegistered()) {
@@ -406,48 +671,6 @@ public class XmppManager {
                 PacketFilter packetFilter = new AndFilter(new PacketIDFilter(
                         registration.getPacketID()), new PacketTypeFilter(
                         IQ.class));
-                /**
-                 * 数据包的监听
-                 */
-                PacketListener packetListener = new PacketListener() {
-
-                    public void processPacket(Packet packet) {
-                        Log.d("RegisterTask.PacketListener",
-                                "processPacket().....");
-                        Log.d("RegisterTask.PacketListener", "packet="
-                                + packet.toXML());
-                        //服务器回复客户端
-                        if (packet instanceof IQ) {
-                            IQ response = (IQ) packet;
-                            if (response.getType() == IQ.Type.ERROR) {		//注册失败
-                                if (!response.getError().toString().contains(
-                                        "409")) {
-                                    Log.e(LOGTAG,
-                                            "Unknown error while registering XMPP account! "
-                                                    + response.getError()
-                                                            .getCondition());
-                                }
-                            } else if (response.getType() == IQ.Type.RESULT) {  //注册成功
-                                xmppManager.setUsername(newUsername);
-                                xmppManager.setPassword(newPassword);
-                                Log.d(LOGTAG, "username=" + newUsername);
-                                Log.d(LOGTAG, "password=" + newPassword);
-                                //把用户名和密码保存到共享引用
-                                Editor editor = sharedPrefs.edit();
-                                editor.putString(Constants.XMPP_USERNAME,
-                                        newUsername);
-                                editor.putString(Constants.XMPP_PASSWORD,
-                                        newPassword);
-                                editor.commit();
-                                Log.i(LOGTAG,
-                                		"Account registered successfully");
-                                xmppManager.runTask();
-                            }
-                        }
-                    }
-                };
-                // 给注册的Packet设置Listener，因为只有等到正真注册成功后，我们才可以交流  
-                connection.addPacketListener(packetListener, packetFilter);
 
                 registration.setType(IQ.Type.SET);
                 // registration.setTo(xmppHost);
@@ -461,13 +684,64 @@ public class XmppManager {
                 registration.addAttribute("imsi", "460000001232300");
                 registration.addAttribute("imei", "324234343434434");
                 
-                // 向服务器端，发送注册Packet包，注意其中Registration是Packet的子类 
-                connection.sendPacket(registration);
+                // 等待服务器的回复，超时则认为注册失败，避免流程卡死
+                PacketCollector collector;
+                Packet packet;
+                long sentAt = SystemClock.elapsedRealtime();
+                try {
+                    collector = connection.createPacketCollector(packetFilter);
+                    // 向服务器端，发送注册Packet包，注意其中Registration是Packet的子类
+                    connection.sendPacket(registration);
+                } catch (Exception e) {	// 有可能connection已经断开
+                    Log.e(LOGTAG, "Failed to send the registration. Caused by: "
+                            + e.getMessage());
+                    metrics.failure(Phase.REGISTER);
+                    xmppManager.fail(token);
+                    return;
+                }
+                packet = collector.nextResult(SmackConfiguration
+                        .getPacketReplyTimeout());
+                collector.cancel();
+
+                if (packet == null) {
+                    Log.e(LOGTAG, "No response from server while registering");
+                    metrics.failure(Phase.REGISTER);
+                    xmppManager.fail(token);
+                    return;
+                }
+                Log.d("RegisterTask.PacketListener", "packet="
+                        + packet.toXML());
+                //服务器回复客户端
+                IQ response = (IQ) packet;
+                if (response.getType() == IQ.Type.ERROR) {		//注册失败
+                    if (!response.getError().toString().contains("409")) {
+                        Log.e(LOGTAG,
+                                "Unknown error while registering XMPP account! "
+                                        + response.getError().getCondition());
+                    }
+                    metrics.failure(Phase.REGISTER);
+                    xmppManager.fail(token);
+                    return;
+                }
+                //注册成功
+                metrics.success(Phase.REGISTER, SystemClock.elapsedRealtime()
+                        - sentAt);
+                xmppManager.setUsername(newUsername);
+                xmppManager.setPassword(newPassword);
+                Log.d(LOGTAG, "username=" + newUsername);
+                Log.d(LOGTAG, "password=" + newPassword);
+                //把用户名和密码保存到共享引用，同步写入，不延迟
+                PreferenceStore.Editor editor = sharedPrefs.edit();
+                editor.putString(Constants.XMPP_USERNAME, newUsername);
+                editor.putString(Constants.XMPP_PASSWORD, newPassword);
+                editor.commit();
+                Log.i(LOGTAG, "Account registered successfully");
 
             } else {
                 Log.i(LOGTAG, "Account registered already");
-                xmppManager.runTask();
             }
+            xmppManager.advance(token, State.REGISTERING,
+                    State.AUTHENTICATING, new LoginTask(token));
         }
     }
 
@@ -476,25 +750,26 @@ public class XmppManager {
      * A runnable task to log into the server. 
      * 该内部类主要实现用注册的账户和密码进行登陆
      */
-    private class LoginTask implements Runnable {
-
-        final XmppManager xmppManager;
+    private class LoginTask extends PhaseTask {
 
-        private LoginTask() {
-            this.xmppManager = XmppManager.this;
+        private LoginTask(int token) {
+            super(token);
         }
 
-        public void run() {
+        void runPhase() {
             Log.i(LOGTAG, "LoginTask.run()...");
             //判断是否已经登陆过了
             if (!xmppManager.isAuthenticated()) {
                 Log.d(LOGTAG, "username=" + username);
                 Log.d(LOGTAG, "password=" + password);
 
+                long loginAt = SystemClock.elapsedRealtime();
                 try {
                     xmppManager.getConnection().login(
                             xmppManager.getUsername(),
                             xmppManager.getPassword(), XMPP_RESOURCE_NAME);
+                    metrics.success(Phase.LOGIN, SystemClock.elapsedRealtime()
+                            - loginAt);
                     Log.d(LOGTAG, "Loggedn in successfully");
 
                     // connection listener
@@ -512,7 +787,7 @@ public class XmppManager {
                      * 数据包的过滤器，识别类型是NotificationIQ的数据包
                      */
                     PacketFilter packetFilter = new PacketTypeFilter(
-                            NotificationIQ.class);
+                            RoutableIQ.class);
                     // packet listener
                     /**
                      *   设置服务器端推送信息数据包的监听器 
@@ -521,10 +796,9 @@ public class XmppManager {
                             .getNotificationPacketListener();
                     connection.addPacketListener(packetListener, packetFilter);
 
-                    xmppManager.runTask();
-
                 } catch (XMPPException e) {
                     Log.e(LOGTAG, "LoginTask.run()... xmpp error");
+                    metrics.failure(Phase.LOGIN);
                     Log.e(LOGTAG, "Failed to login to xmpp server. Caused by: "
                             + e.getMessage());
                     /**
@@ -538,23 +812,34 @@ public class XmppManager {
                     if (errorMessage != null
                             && errorMessage
                                     .contains(INVALID_CREDENTIALS_ERROR_CODE)) {
-                        xmppManager.reregisterAccount();
+                        xmppManager.reregisterAccount(token);
                         return;
                     }
-                    xmppManager.startReconnectionThread();
+                    xmppManager.fail(token);
+                    return;
 
                 } catch (Exception e) {	// 有可能mConnection都为空  
                     Log.e(LOGTAG, "LoginTask.run()... other error");
+                    metrics.failure(Phase.LOGIN);
                     Log.e(LOGTAG, "Failed to login to xmpp server. Caused by: "
                             + e.getMessage());
-                    xmppManager.startReconnectionThread();  //启动重连线程
+                    xmppManager.fail(token);  //安排重连
+                    return;
                 }
 
             } else {			//已经登陆
                 Log.i(LOGTAG, "Logged in already");
-                xmppManager.runTask();
             }
-
+            if (stateMachine.advance(token, State.AUTHENTICATING, State.READY)) {
+                metrics.success(Phase.READY, SystemClock.elapsedRealtime()
+                        - attemptStartedAt);
+                Log.d(LOGTAG, metrics.getSnapshot(Phase.READY).toString());
+                Log.d(LOGTAG, "Stream compression "
+                        + (xmppManager.isUsingCompression() ? "on" : "off"));
+                streamManager.sessionEstablished(connection);
+                keepAliveManager.start(connection);
+                reconnection.connectionEstablished();
+            }
         }
     }
 
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.SocketFactory;
+
+import org.androidpn.client.ConnectionMetrics.Phase;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The socket factory for the XMPP connection. Host names are resolved
+ * through the {@link HostResolver} cache, and a socket opened ahead of
+ * time by {@link #prewarm(String, int)} is handed over to the next
+ * connection to the same endpoint.
+ *
+ * If several endpoints are configured, they are raced: the attempts start
+ * {@link #STAGGER_MILLIS} apart in the order of their health score, or
+ * right away once the previous attempt failed. The first connected socket
+ * wins, and the other attempts are aborted.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class XmppSocketFactory extends SocketFactory {
+
+    private static final String LOGTAG = LogUtil
+            .makeLogTag(XmppSocketFactory.class);
+
+    public static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+
+    /** How long a pre-warmed socket is kept before it is considered stale. */
+    public static final long PREWARM_MAX_IDLE_MILLIS = 30 * 1000L;
+
+    /** Delay before the next endpoint is tried in parallel. */
+    public static final long STAGGER_MILLIS = 250L;
+
+    private final HostResolver resolver;
+
+    private final ConnectionMetrics metrics;
+
+    private final AtomicReference<PrewarmedSocket> prewarmed = new AtomicReference<PrewarmedSocket>();
+
+    private volatile long prewarmHits;
+
+    private volatile long lastSocketAt;
+
+    private volatile List<XmppEndpoint> endpoints = Collections.emptyList();
+
+    private ExecutorService raceExecutor;
+
+    public XmppSocketFactory(HostResolver resolver, ConnectionMetrics metrics) {
+        this.resolver = resolver;
+        this.metrics = metrics;
+    }
+
+    public HostResolver getResolver() {
+        return resolver;
+    }
+
+    public long getPrewarmHits() {
+        return prewarmHits;
+    }
+
+    /**
+     * Returns the time the last socket was handed to the connection, in
+     * {@link SystemClock#elapsedRealtime()} milliseconds.
+     */
+    public long getLastSocketAt() {
+        return lastSocketAt;
+    }
+
+    /**
+     * Sets the endpoints to connect to instead of the host given by smack.
+     */
+    public void setEndpoints(List<XmppEndpoint> endpoints) {
+        this.endpoints = Collections
+                .unmodifiableList(new ArrayList<XmppEndpoint>(endpoints));
+    }
+
+    public List<XmppEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Resolves the host and opens a socket to it, to be used by the next
+     * connection. This call blocks and must not run on the main thread.
+     */
+    public void prewarm(String host, int port) {
+        PrewarmedSocket current = prewarmed.get();
+        if (current != null && current.matches(host, port)
+                && current.isFresh()) {
+            return;
+        }
+        try {
+            Socket socket = connect(host, port);
+            PrewarmedSocket old = prewarmed.getAndSet(new PrewarmedSocket(
+                    host, port, socket));
+            if (old != null) {
+                old.close();
+            }
+            Log.d(LOGTAG, "Pre-warmed connection to " + host + ":" + port);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not pre-warm " + host + ":" + port + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the pre-warmed socket, if any.
+     */
+    public void discardPrewarmed() {
+        PrewarmedSocket old = prewarmed.getAndSet(null);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return new Socket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException,
+            UnknownHostException {
+        long start = SystemClock.elapsedRealtime();
+        PrewarmedSocket candidate = prewarmed.getAndSet(null);
+        if (candidate != null) {
+            if (candidate.matches(host, port) && candidate.isUsable()) {
+                prewarmHits++;
+                Log.d(LOGTAG, "Using pre-warmed connection to " + host + ":"
+                        + port);
+                lastSocketAt = SystemClock.elapsedRealtime();
+                metrics.success(Phase.CONNECT, lastSocketAt - start);
+                return candidate.socket;
+            }
+            candidate.close();
+        }
+        try {
+            Socket socket = connect(host, port);
+            lastSocketAt = SystemClock.elapsedRealtime();
+            metrics.success(Phase.CONNECT, lastSocketAt - start);
+            return socket;
+        } catch (IOException e) {
+            metrics.failure(Phase.CONNECT);
+            throw e;
+        }
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+            int localPort) throws IOException, UnknownHostException {
+        return connect(host, port, new InetSocketAddress(localHost,
+                localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port),
+                CONNECT_TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+            InetAddress localAddress, int localPort) throws IOException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port),
+                CONNECT_TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    private Socket connect(String host, int port) throws IOException {
+        return connect(host, port, null);
+    }
+
+    private Socket connect(String host, int port, InetSocketAddress local)
+            throws IOException {
+        List<XmppEndpoint> candidates = endpoints;
+        if (local != null || candidates.isEmpty()) {
+            return connect(host, port, local, null);
+        }
+        if (candidates.size() == 1) {
+            return new Attempt(candidates.get(0)).call().socket;
+        }
+        return race(candidates);
+    }
+
+    /**
+     * Races the endpoints and returns the first connected socket.
+     */
+    private Socket race(List<XmppEndpoint> candidates) throws IOException {
+        List<Attempt> attempts = new ArrayList<Attempt>(candidates.size());
+        for (XmppEndpoint endpoint : candidates) {
+            attempts.add(new Attempt(endpoint));
+        }
+        Collections.sort(attempts);
+        CompletionService<Attempt> completion = new ExecutorCompletionService<Attempt>(
+                getRaceExecutor());
+        int started = 0;
+        int finished = 0;
+        Attempt winner = null;
+        IOException failure = null;
+        try {
+            completion.submit(attempts.get(started++));
+            while (finished < started) {
+                Future<Attempt> done;
+                if (started < attempts.size()) {
+                    done = completion.poll(STAGGER_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        completion.submit(attempts.get(started++));
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                finished++;
+                try {
+                    winner = done.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e
+                            .getCause()
+                            : new IOException(String.valueOf(e.getCause()));
+                    // Do not wait for the stagger after a failure
+                    if (started < attempts.size()) {
+                        completion.submit(attempts.get(started++));
+                    }
+                    continue;
+                }
+                break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException("Connect interrupted");
+        } finally {
+            for (Attempt attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.abort();
+                }
+            }
+        }
+        if (winner != null) {
+            Log.d(LOGTAG, "Connected to " + winner.endpoint + " (health "
+                    + winner.health + ")");
+            return winner.socket;
+        }
+        throw failure != null ? failure : new IOException(
+                "Could not connect to any endpoint");
+    }
+
+    private synchronized ExecutorService getRaceExecutor() {
+        if (raceExecutor == null) {
+            raceExecutor = Executors.newCachedThreadPool();
+        }
+        return raceExecutor;
+    }
+
+    /**
+     * Connects to the first reachable address of the host.
+     * @param owner the race attempt the connect belongs to, or null
+     */
+    private Socket connect(String host, int port, InetSocketAddress local,
+            Attempt owner) throws IOException {
+        InetAddress[] addresses = resolver.resolve(host);
+        IOException failure = null;
+        for (InetAddress address : addresses) {
+            // A socket cannot be reused after a failed connect
+            Socket socket = new Socket();
+            if (owner != null && !owner.register(socket)) {
+                throw new InterruptedIOException("Connect aborted");
+            }
+            try {
+                if (local != null) {
+                    socket.bind(local);
+                }
+                // Keep the configured host name on the address, so that the
+                // TLS layer neither does a reverse lookup nor keys its
+                // session cache by a different name.
+                InetAddress target = InetAddress.getByAddress(host, address
+                        .getAddress());
+                socket.connect(new InetSocketAddress(target, port),
+                        CONNECT_TIMEOUT_MILLIS);
+                return socket;
+            } catch (IOException e) {
+                failure = e;
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        // The cached addresses may be stale
+        resolver.invalidate(host);
+        throw failure != null ? failure : new IOException(
+                "Could not connect to " + host + ":" + port);
+    }
+
+    /**
+     * A connect attempt to one endpoint in a race.
+     */
+    private final class Attempt implements Callable<Attempt>,
+            Comparable<Attempt> {
+
+        final XmppEndpoint endpoint;
+
+        // Snapshot, so that the ordering is stable while sorting
+        final double health;
+
+        private Socket socket;
+
+        private boolean aborted;
+
+        Attempt(XmppEndpoint endpoint) {
+            this.endpoint = endpoint;
+            this.health = endpoint.getHealth();
+        }
+
+        public Attempt call() throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            Socket connected;
+            try {
+                connected = connect(endpoint.getHost(), endpoint.getPort(),
+                        null, this);
+            } catch (IOException e) {
+                if (!isAborted()) {
+                    endpoint.failed();
+                    Log.w(LOGTAG, "Could not connect to " + endpoint + ": "
+                            + e.getMessage());
+                }
+                throw e;
+            }
+            endpoint.connected(SystemClock.elapsedRealtime() - start);
+            synchronized (this) {
+                if (aborted) {
+                    // Lost the race
+                    close(connected);
+                    throw new InterruptedIOException("Connect aborted");
+                }
+                socket = connected;
+            }
+            return this;
+        }
+
+        synchronized boolean register(Socket socket) {
+            if (aborted) {
+                return false;
+            }
+            this.socket = socket;
+            return true;
+        }
+
+        synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            if (socket != null) {
+                close(socket);
+            }
+        }
+
+        public int compareTo(Attempt another) {
+            if (health != another.health) {
+                return health > another.health ? -1 : 1;
+            }
+            return endpoint.getOrder() - another.endpoint.getOrder();
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static final class PrewarmedSocket {
+
+        final String host;
+
+        final int port;
+
+        final Socket socket;
+
+        final long createdAt;
+
+        PrewarmedSocket(String host, int port, Socket socket) {
+            this.host = host;
+            this.port = port;
+            this.socket = socket;
+            this.createdAt = SystemClock.elapsedRealtime();
+        }
+
+        boolean matches(String host, int port) {
+            return this.port == port && this.host.equals(host);
+        }
+
+        boolean isFresh() {
+            return SystemClock.elapsedRealtime() - createdAt
+                    < PREWARM_MAX_IDLE_MILLIS;
+        }
+
+        boolean isUsable() {
+            return isFresh() && socket.isConnected() && !socket.isClosed()
+                    && !socket.isInputShutdown() && !socket.isOutputShutdown();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The zlib input stream for XMPP stream compression, on top of
+ * java.util.zip. See {@link ZlibOutputStream}.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class ZlibInputStream extends InflaterInputStream {
+
+    private int flushMode;
+
+    public ZlibInputStream(InputStream in) {
+        super(new CountingInputStream(in), new Inflater(), 4096);
+    }
+
+    public void setFlushMode(int flushMode) {
+        this.flushMode = flushMode;
+    }
+
+    public int getFlushMode() {
+        return flushMode;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            CompressionStats.addInbound(n, 0);
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            inf.end();
+        }
+    }
+
+    /**
+     * Counts the compressed bytes read from the socket.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                CompressionStats.addInbound(0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                CompressionStats.addInbound(0, n);
+            }
+            return n;
+        }
+    }
+
+}
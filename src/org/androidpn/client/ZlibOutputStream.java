@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010 Moduad Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidpn.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+
+/**
+ * The zlib output stream for XMPP stream compression. smack looks up
+ * com.jcraft.jzlib.ZOutputStream by name when compression is negotiated,
+ * and the bundled asmack does not ship JZlib, so this class provides the
+ * part of the JZlib API smack uses, on top of java.util.zip. The
+ * com.jcraft.jzlib.ZOutputStream shim only passes it to smack.
+ *
+ * Each flush() ends with a zlib sync flush, so that every stanza reaches
+ * the server as soon as smack writes it. The deflate method taking a
+ * flush mode is only public from Java 7 and Android API level 19, so it
+ * is looked up at runtime; see {@link #isSupported()}.
+ *
+ * @author Sehwan Noh (devnoh@gmail.com)
+ */
+public class ZlibOutputStream extends FilterOutputStream {
+
+    private static final int NO_FLUSH = 0;
+
+    private static final int SYNC_FLUSH = 2;
+
+    private static final Method DEFLATE = findDeflate();
+
+    private final Deflater deflater;
+
+    private final byte[] buf = new byte[4096];
+
+    private int flushMode = SYNC_FLUSH;
+
+    public ZlibOutputStream(OutputStream out, int level) {
+        super(out);
+        if (DEFLATE == null) {
+            throw new IllegalStateException("Sync flush is not supported");
+        }
+        deflater = new Deflater(level);
+    }
+
+    /**
+     * Returns true if the runtime can sync flush a deflate stream, which
+     * XMPP stream compression requires.
+     */
+    public static boolean isSupported() {
+        return DEFLATE != null;
+    }
+
+    public void setFlushMode(int flushMode) {
+        this.flushMode = flushMode;
+    }
+
+    public int getFlushMode() {
+        return flushMode;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        deflater.setInput(b, off, len);
+        long written = 0;
+        while (!deflater.needsInput()) {
+            written += drain(NO_FLUSH);
+        }
+        CompressionStats.addOutbound(len, written);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long written = 0;
+        int n;
+        do {
+            n = drain(flushMode == NO_FLUSH ? SYNC_FLUSH : flushMode);
+            written += n;
+        } while (n == buf.length);
+        CompressionStats.addOutbound(0, written);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private int drain(int mode) throws IOException {
+        int n;
+        try {
+            n = ((Integer) DEFLATE.invoke(deflater, buf, 0, buf.length,
+                    mode)).intValue();
+        } catch (Exception e) {
+            IOException ioe = new IOException("Deflate failed");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        if (n > 0) {
+            out.write(buf, 0, n);
+        }
+        return n;
+    }
+
+    private static Method findDeflate() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class,
+                    int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
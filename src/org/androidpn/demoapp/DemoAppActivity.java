@@ -19,6 +19,7 @@ import org.androidpn.client.ServiceManager;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -33,6 +34,7 @@ public class DemoAppActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         Log.d("DemoAppActivity", "onCreate()...");
+        long start = SystemClock.uptimeMillis();
 
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
@@ -46,9 +48,13 @@ public class DemoAppActivity extends Activity {
         });
 
         // Start the service
-        ServiceManager serviceManager = new ServiceManager(this);
+        // 配置在后台线程加载，不阻塞界面的创建
+        ServiceManager serviceManager = new ServiceManager(this, true);
         serviceManager.setNotificationIcon(R.drawable.notification);
         serviceManager.startService();
+
+        Log.d("DemoAppActivity", "onCreate() took "
+                + (SystemClock.uptimeMillis() - start) + "ms");
     }
 
 }
\ No newline at end of file